@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -73,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -86,7 +83,6 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.Preference;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
@@ -94,7 +90,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -125,10 +120,12 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageList;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsRepository;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -142,7 +139,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -191,6 +187,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private TelephonyManager mTelephonyManager;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsRepository mStatsRepository;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -295,6 +292,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         try {
             mStatsSession = mStatsService.openSession();
+            mStatsRepository = new NetworkStatsRepository(mStatsSession);
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
@@ -417,8 +415,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -457,6 +454,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     // wait a few seconds before kicking off
                     Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
+                    // drop what was cached before the update
+                    mStatsRepository.invalidate();
                 } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
@@ -600,7 +599,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mDataEnabledView = null;
         mDisableAtLimitView = null;
 
-        mUidDetailProvider.clearCache();
+        if (LOGD) Log.d(TAG, "uid details: " + mUidDetailProvider);
+        mUidDetailProvider.release();
         mUidDetailProvider = null;
 
         TrafficStats.closeQuietly(mStatsSession);
@@ -789,7 +789,6 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private void updateAppDetail() {
         final Context context = getActivity();
         final PackageManager pm = context.getPackageManager();
-        final LayoutInflater inflater = getActivity().getLayoutInflater();
 
         if (isAppDetailMode()) {
             mAppDetail.setVisibility(View.VISIBLE);
@@ -806,39 +805,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         // remove warning/limit sweeps while in detail mode
         mChart.bindNetworkPolicy(null);
 
-        // show icon and all labels appearing under this app
+        // show icon and all labels appearing under this app, once resolved
         final int uid = mCurrentApp.key;
-        final UidDetail detail = mUidDetailProvider.getUidDetail(uid, true);
-        mAppIcon.setImageDrawable(detail.icon);
-
-        mAppTitles.removeAllViews();
-
-        View title = null;
-        if (detail.detailLabels != null) {
-            final int n = detail.detailLabels.length;
-            for (int i = 0; i < n; ++i) {
-                CharSequence label = detail.detailLabels[i];
-                CharSequence contentDescription = detail.detailContentDescriptions[i];
-                title = inflater.inflate(R.layout.data_usage_app_title, mAppTitles, false);
-                TextView appTitle = (TextView) title.findViewById(R.id.app_title);
-                appTitle.setText(label);
-                appTitle.setContentDescription(contentDescription);
-                mAppTitles.addView(title);
-            }
-        } else {
-            title = inflater.inflate(R.layout.data_usage_app_title, mAppTitles, false);
-            TextView appTitle = (TextView) title.findViewById(R.id.app_title);
-            appTitle.setText(detail.label);
-            appTitle.setContentDescription(detail.contentDescription);
-            mAppTitles.addView(title);
-        }
-
-        // Remember last slot for summary
-        if (title != null) {
-            mAppTotal = (TextView) title.findViewById(R.id.app_summary);
-        } else {
-            mAppTotal = null;
-        }
+        bindAppDetail(mUidDetailProvider.getUidDetail(uid, mAppDetailCallback));
 
         // enable settings button when package provides it
         final String[] packageNames = pm.getPackagesForUid(uid);
@@ -893,6 +862,55 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     }
 
+    private final UidDetailProvider.Callback mAppDetailCallback = new UidDetailProvider.Callback() {
+        @Override
+        public void onUidDetailLoaded(int uid, UidDetail detail) {
+            if (isAdded() && isAppDetailMode() && mCurrentApp.key == uid) {
+                bindAppDetail(detail);
+                // fill in the total of the new summary slot
+                updateDetailData();
+            }
+        }
+    };
+
+    /**
+     * Show icon and labels of the current app, or leave them empty when
+     * {@code null}.
+     */
+    private void bindAppDetail(UidDetail detail) {
+        final LayoutInflater inflater = getActivity().getLayoutInflater();
+        mAppIcon.setImageDrawable(detail != null ? detail.icon : null);
+
+        mAppTitles.removeAllViews();
+
+        View title = null;
+        if (detail != null && detail.detailLabels != null) {
+            final int n = detail.detailLabels.length;
+            for (int i = 0; i < n; ++i) {
+                CharSequence label = detail.detailLabels[i];
+                CharSequence contentDescription = detail.detailContentDescriptions[i];
+                title = inflater.inflate(R.layout.data_usage_app_title, mAppTitles, false);
+                TextView appTitle = (TextView) title.findViewById(R.id.app_title);
+                appTitle.setText(label);
+                appTitle.setContentDescription(contentDescription);
+                mAppTitles.addView(title);
+            }
+        } else {
+            title = inflater.inflate(R.layout.data_usage_app_title, mAppTitles, false);
+            TextView appTitle = (TextView) title.findViewById(R.id.app_title);
+            appTitle.setText(detail != null ? detail.label : null);
+            appTitle.setContentDescription(detail != null ? detail.contentDescription : null);
+            mAppTitles.addView(title);
+        }
+
+        // Remember last slot for summary
+        if (title != null) {
+            mAppTotal = (TextView) title.findViewById(R.id.app_summary);
+        } else {
+            mAppTotal = null;
+        }
+    }
+
     private void setPolicyWarningBytes(long warningBytes) {
         if (LOGD) Log.d(TAG, "setPolicyWarningBytes()");
         mPolicyEditor.setPolicyWarningBytes(mTemplate, warningBytes);
@@ -1244,7 +1262,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsRepository, args);
         }
 
         @Override
@@ -1271,24 +1289,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppUsageList> mSummaryCallbacks = new LoaderCallbacks<
+            AppUsageList>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+        public Loader<AppUsageList> onCreateLoader(int id, Bundle args) {
+            return new SummaryForAllUidLoader(getActivity(), mStatsRepository, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<AppUsageList> loader, AppUsageList data) {
+            mAdapter.bindItems(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<AppUsageList> loader) {
+            mAdapter.bindItems(null);
             updateEmptyVisible();
         }
 
@@ -1526,119 +1542,50 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
      * Adapter of applications, sorted by total usage descending.
      */
     public static class DataUsageAdapter extends BaseAdapter {
+        private static final int PREFETCH_ROWS = 6;
+
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private List<AppItem> mItems = AppUsageList.EMPTY.items;
         private long mLargest;
+        private int mLastPosition;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link AppUsageList}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-            mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
+        public void bindItems(AppUsageList usage) {
+            if (usage == null) {
+                usage = AppUsageList.EMPTY;
             }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
-            }
-
-            Collections.sort(mItems);
+            mItems = usage.items;
+            mLargest = usage.largest;
             notifyDataSetChanged();
         }
 
         /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
+         * Start resolving the details of the rows about to scroll into view,
+         * in the direction the list last moved.
          */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
+        private void prefetchAround(int position) {
+            final int direction = position >= mLastPosition ? 1 : -1;
+            mLastPosition = position;
+
+            final int count = mItems.size();
+            for (int i = 1; i <= PREFETCH_ROWS; i++) {
+                final int next = position + direction * i;
+                if (next < 0 || next >= count) {
+                    break;
+                }
+                final AppItem item = mItems.get(next);
+                if (item.category != AppItem.CATEGORY_APP_TITLE) {
+                    mProvider.prefetchUidDetail(item.key);
+                }
             }
         }
 
@@ -1720,7 +1667,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                         android.R.id.progress);
 
                 // kick off async load of app details
-                UidDetailTask.bindView(mProvider, item, convertView);
+                UidDetailBinder.bindView(mProvider, item, convertView);
+                prefetchAround(position);
 
                 if (item.restricted && item.total <= 0) {
                     text1.setText(R.string.data_usage_app_restricted);
@@ -2193,34 +2141,28 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     }
 
     /**
-     * Background task that loads {@link UidDetail}, binding to
-     * {@link DataUsageAdapter} row item when finished.
+     * Binds the {@link UidDetail} of an {@link AppItem} to a {@link DataUsageAdapter}
+     * row, as soon as {@link UidDetailProvider} has resolved it.
      */
-    private static class UidDetailTask extends AsyncTask<Void, Void, UidDetail> {
-        private final UidDetailProvider mProvider;
-        private final AppItem mItem;
+    private static class UidDetailBinder implements UidDetailProvider.Callback {
         private final View mTarget;
+        private int mKey;
 
-        private UidDetailTask(UidDetailProvider provider, AppItem item, View target) {
-            mProvider = checkNotNull(provider);
-            mItem = checkNotNull(item);
+        private UidDetailBinder(View target) {
             mTarget = checkNotNull(target);
         }
 
         public static void bindView(
                 UidDetailProvider provider, AppItem item, View target) {
-            final UidDetailTask existing = (UidDetailTask) target.getTag();
-            if (existing != null) {
-                existing.cancel(false);
+            UidDetailBinder binder = (UidDetailBinder) target.getTag();
+            if (binder == null) {
+                binder = new UidDetailBinder(target);
+                target.setTag(binder);
             }
+            binder.mKey = item.key;
 
-            final UidDetail cachedDetail = provider.getUidDetail(item.key, false);
-            if (cachedDetail != null) {
-                bindView(cachedDetail, target);
-            } else {
-                target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
-            }
+            // shows nothing until resolved when not cached
+            bindView(provider.getUidDetail(item.key, binder), target);
         }
 
         private static void bindView(UidDetail detail, View target) {
@@ -2238,18 +2180,11 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
 
         @Override
-        protected void onPreExecute() {
-            bindView(null, mTarget);
-        }
-
-        @Override
-        protected UidDetail doInBackground(Void... params) {
-            return mProvider.getUidDetail(mItem.key, true);
-        }
-
-        @Override
-        protected void onPostExecute(UidDetail result) {
-            bindView(result, mTarget);
+        public void onUidDetailLoaded(int uid, UidDetail detail) {
+            // the row may have been recycled for another item meanwhile
+            if (uid == mKey) {
+                bindView(detail, mTarget);
+            }
         }
     }
 
@@ -2312,11 +2247,10 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         final boolean hasEthernet = conn.isNetworkSupported(TYPE_ETHERNET);
 
         final long ethernetBytes;
-        if (mStatsSession != null) {
+        if (mStatsRepository != null) {
             try {
-                ethernetBytes = mStatsSession.getSummaryForNetwork(
-                        NetworkTemplate.buildTemplateEthernet(), Long.MIN_VALUE, Long.MAX_VALUE)
-                        .getTotalBytes();
+                ethernetBytes = mStatsRepository.getTotalBytesForNetwork(
+                        NetworkTemplate.buildTemplateEthernet(), Long.MIN_VALUE, Long.MAX_VALUE);
             } catch (RemoteException e) {
                 throw new RuntimeException(e);
             }
@@ -36,6 +36,7 @@ import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.INetworkManagementService;
@@ -63,6 +64,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.SearchView;
 
+import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.XmlUtils;
 import com.android.settings.accessibility.AccessibilitySettings;
@@ -121,6 +123,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Set;
 
 import static com.android.settings.dashboard.DashboardTile.TILE_ID_UNDEFINED;
@@ -203,6 +206,94 @@ public class SettingsActivity extends Activity
 
     private static boolean sShowNoHomeNotice = false;
 
+    // Dashboard categories, shared by all the instances. The generation is bumped whenever
+    // something they depend on and that is not part of their key changes.
+    private static final Object sCategoriesLock = new Object();
+    private static int sCategoriesGeneration;
+    private static CategoriesKey sCachedCategoriesKey;
+    private static CategoriesResult sCachedCategories;
+    private static boolean sCategoriesInvalidatorRegistered;
+    // Instances between onResume() and onPause(), only touched on the main thread
+    private static final ArrayList<SettingsActivity> sResumedActivities =
+            new ArrayList<SettingsActivity>();
+
+    /**
+     * Everything the dashboard categories depend on that can be read without IPC. System
+     * features are fixed for the life of the process, and the rest (installed packages, home
+     * activities, NFC, SIMs and users) is tracked by the generation.
+     */
+    private static final class CategoriesKey {
+        final int userId;
+        final boolean showDev;
+        final boolean batteryPresent;
+        // Titles are resolved when the categories are built
+        final Locale locale;
+        final int generation;
+
+        CategoriesKey(int userId, boolean showDev, boolean batteryPresent, Locale locale,
+                int generation) {
+            this.userId = userId;
+            this.showDev = showDev;
+            this.batteryPresent = batteryPresent;
+            this.locale = locale;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CategoriesKey)) {
+                return false;
+            }
+            final CategoriesKey other = (CategoriesKey) o;
+            return userId == other.userId && showDev == other.showDev
+                    && batteryPresent == other.batteryPresent && generation == other.generation
+                    && locale.equals(other.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = userId;
+            result = 31 * result + (showDev ? 1 : 0);
+            result = 31 * result + (batteryPresent ? 1 : 0);
+            result = 31 * result + locale.hashCode();
+            return 31 * result + generation;
+        }
+    }
+
+    private static final class CategoriesResult {
+        final ArrayList<DashboardCategory> categories = new ArrayList<DashboardCategory>();
+        // Number of home activities, or -1 if they were not looked up
+        int homeActivitiesCount = -1;
+    }
+
+    /**
+     * Invalidates the cached dashboard categories when packages, NFC, SIMs or users change,
+     * and has the resumed instances rebuild theirs.
+     */
+    private static class CategoriesInvalidator extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            synchronized (sCategoriesLock) {
+                sCategoriesGeneration++;
+                sCachedCategoriesKey = null;
+                sCachedCategories = null;
+            }
+            for (int i = 0; i < sResumedActivities.size(); i++) {
+                sResumedActivities.get(i).invalidateCategories(true);
+            }
+        }
+    }
+
+    /**
+     * Told on the main thread when new dashboard categories are ready.
+     */
+    public interface CategoriesListener {
+        void onCategoriesChanged();
+    }
+
     private String mFragmentClass;
 
     private CharSequence mInitialTitle;
@@ -340,6 +431,11 @@ public class SettingsActivity extends Activity
 
     // Categories
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
+    // What the categories above were built for, or null if they were not built yet
+    private CategoriesKey mCategoriesKey;
+    private BuildCategoriesTask mBuildCategoriesTask;
+    private final ArrayList<CategoriesListener> mCategoriesListeners =
+            new ArrayList<CategoriesListener>();
 
     private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
     private static final int MSG_BUILD_CATEGORIES = 1;
@@ -349,8 +445,8 @@ public class SettingsActivity extends Activity
             switch (msg.what) {
                 case MSG_BUILD_CATEGORIES: {
                     final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
-                    if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
+                    if (forceRefresh && mIsShowingDashboard) {
+                        updateCategories();
                     }
                 } break;
             }
@@ -366,13 +462,146 @@ public class SettingsActivity extends Activity
         return mSwitchBar;
     }
 
+    /**
+     * Returns the categories and tiles to show on the dashboard. They are built in the
+     * background, so this returns the previous ones (or none at all) while they are being
+     * rebuilt, and tells the {@link CategoriesListener}s once they are ready.
+     */
     public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
         if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+            updateCategories();
         }
         return mCategories;
     }
 
+    public void addCategoriesListener(CategoriesListener listener) {
+        if (!mCategoriesListeners.contains(listener)) {
+            mCategoriesListeners.add(listener);
+        }
+    }
+
+    public void removeCategoriesListener(CategoriesListener listener) {
+        mCategoriesListeners.remove(listener);
+    }
+
+    private CategoriesKey getCategoriesKey() {
+        final boolean showDev = mDevelopmentPreferences.getBoolean(
+                DevelopmentSettings.PREF_SHOW,
+                android.os.Build.TYPE.equals("eng"));
+        final int generation;
+        synchronized (sCategoriesLock) {
+            generation = sCategoriesGeneration;
+        }
+        return new CategoriesKey(UserHandle.myUserId(), showDev, mBatteryPresent,
+                getResources().getConfiguration().locale, generation);
+    }
+
+    /**
+     * Shows the cached categories if they are still valid, or builds new ones in the
+     * background.
+     */
+    private void updateCategories() {
+        final CategoriesKey key = getCategoriesKey();
+        if (key.equals(mCategoriesKey)) {
+            return;
+        }
+        CategoriesResult cached = null;
+        synchronized (sCategoriesLock) {
+            if (key.equals(sCachedCategoriesKey)) {
+                cached = sCachedCategories;
+            }
+        }
+        if (cached != null) {
+            applyCategories(key, cached);
+            return;
+        }
+        if (mBuildCategoriesTask != null) {
+            if (key.equals(mBuildCategoriesTask.mKey)) {
+                return;
+            }
+            mBuildCategoriesTask.cancel(false);
+        }
+        mBuildCategoriesTask = new BuildCategoriesTask(getApplicationContext(), key);
+        mBuildCategoriesTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void applyCategories(CategoriesKey key, CategoriesResult result) {
+        mCategoriesKey = key;
+        mCategories.clear();
+        mCategories.addAll(result.categories);
+
+        if (result.homeActivitiesCount >= 0) {
+            mHomeActivitiesCount = result.homeActivitiesCount;
+            // If the user just uninstalled the penultimate home app candidate, tell them
+            // why they are not seeing 'Home' in the list anymore.
+            if (mHomeActivitiesCount < 2 && sShowNoHomeNotice) {
+                sShowNoHomeNotice = false;
+                NoHomeDialogFragment.show(this);
+            }
+        }
+
+        for (int i = 0; i < mCategoriesListeners.size(); i++) {
+            mCategoriesListeners.get(i).onCategoriesChanged();
+        }
+    }
+
+    private class BuildCategoriesTask extends AsyncTask<Void, Void, CategoriesResult> {
+        private final Context mContext;
+        final CategoriesKey mKey;
+
+        BuildCategoriesTask(Context context, CategoriesKey key) {
+            mContext = context;
+            mKey = key;
+        }
+
+        @Override
+        protected CategoriesResult doInBackground(Void... params) {
+            final CategoriesResult result = new CategoriesResult();
+            buildDashboardCategories(mContext, mKey, result);
+            return result;
+        }
+
+        @Override
+        protected void onPostExecute(CategoriesResult result) {
+            if (mBuildCategoriesTask == this) {
+                mBuildCategoriesTask = null;
+            }
+            synchronized (sCategoriesLock) {
+                // Only keep them if nothing changed while they were being built
+                if (mKey.generation == sCategoriesGeneration) {
+                    sCachedCategoriesKey = mKey;
+                    sCachedCategories = result;
+                }
+            }
+            if (!isDestroyed()) {
+                applyCategories(mKey, result);
+                // Catch up with what changed in the meantime
+                updateCategories();
+            }
+        }
+    }
+
+    private static void registerCategoriesInvalidator(Context context) {
+        if (sCategoriesInvalidatorRegistered) {
+            return;
+        }
+        sCategoriesInvalidatorRegistered = true;
+        final CategoriesInvalidator invalidator = new CategoriesInvalidator();
+
+        final IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(invalidator, packageFilter);
+
+        final IntentFilter filter = new IntentFilter(NfcAdapter.ACTION_ADAPTER_STATE_CHANGED);
+        filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(Intent.ACTION_USER_ADDED);
+        filter.addAction(Intent.ACTION_USER_REMOVED);
+        context.registerReceiver(invalidator, filter);
+    }
+
     @Override
     public boolean onPreferenceStartFragment(PreferenceFragment caller, Preference pref) {
         // Override the fragment title for Wallpaper settings
@@ -402,6 +631,7 @@ public class SettingsActivity extends Activity
             Message msg = new Message();
             msg.what = MSG_BUILD_CATEGORIES;
             msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+            mHandler.sendMessage(msg);
         }
     }
 
@@ -485,6 +715,7 @@ public class SettingsActivity extends Activity
 
         mDevelopmentPreferences = getSharedPreferences(DevelopmentSettings.PREF_FILE,
                 Context.MODE_PRIVATE);
+        registerCategoriesInvalidator(getApplicationContext());
 
         // Getting Intent properties can only be done after the super.onCreate(...)
         final String initialFragmentName = intent.getStringExtra(EXTRA_SHOW_FRAGMENT);
@@ -634,13 +865,11 @@ public class SettingsActivity extends Activity
                 }
             }
         }
-
-        mHomeActivitiesCount = getHomeActivitiesCount();
     }
 
-    private int getHomeActivitiesCount() {
+    private static int getHomeActivitiesCount(Context context) {
         final ArrayList<ResolveInfo> homeApps = new ArrayList<ResolveInfo>();
-        getPackageManager().getHomeActivities(homeApps);
+        context.getPackageManager().getHomeActivities(homeApps);
         return homeApps.size();
     }
 
@@ -725,11 +954,8 @@ public class SettingsActivity extends Activity
     public void onResume() {
         super.onResume();
 
-        final int newHomeActivityCount = getHomeActivitiesCount();
-        if (newHomeActivityCount != mHomeActivitiesCount) {
-            mHomeActivitiesCount = newHomeActivityCount;
-            invalidateCategories(true);
-        }
+        // Changes to the home activities are picked up by the CategoriesInvalidator
+        sResumedActivities.add(this);
 
         mDevelopmentPreferencesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
@@ -753,6 +979,7 @@ public class SettingsActivity extends Activity
     public void onPause() {
         super.onPause();
 
+        sResumedActivities.remove(this);
         unregisterReceiver(mBatteryInfoReceiver);
         mDynamicIndexableContentMonitor.unregister();
     }
@@ -761,6 +988,11 @@ public class SettingsActivity extends Activity
     public void onDestroy() {
         super.onDestroy();
 
+        if (mBuildCategoriesTask != null) {
+            mBuildCategoriesTask.cancel(false);
+            mBuildCategoriesTask = null;
+        }
+
         mDevelopmentPreferences.unregisterOnSharedPreferenceChangeListener(
                 mDevelopmentPreferencesListener);
         mDevelopmentPreferencesListener = null;
@@ -940,27 +1172,31 @@ public class SettingsActivity extends Activity
     }
 
     /**
-     * Called when the activity needs its list of categories/tiles built.
+     * Called in the background when the list of categories/tiles needs to be built.
      *
-     * @param categories The list in which to place the tiles categories.
+     * @param context The application context.
+     * @param key What the categories are built for.
+     * @param result Where to place the tiles categories.
      */
-    private void buildDashboardCategories(List<DashboardCategory> categories) {
-        categories.clear();
-        loadCategoriesFromResource(R.xml.dashboard_categories, categories);
-        updateTilesList(categories);
+    private static void buildDashboardCategories(Context context, CategoriesKey key,
+            CategoriesResult result) {
+        loadCategoriesFromResource(context, R.xml.dashboard_categories, result.categories);
+        updateTilesList(context, key, result);
     }
 
     /**
      * Parse the given XML file as a categories description, adding each
      * parsed categories and tiles into the target list.
      *
+     * @param context The context to load the resource with.
      * @param resid The XML resource to load and parse.
      * @param target The list in which the parsed categories and tiles should be placed.
      */
-    private void loadCategoriesFromResource(int resid, List<DashboardCategory> target) {
+    private static void loadCategoriesFromResource(Context context, int resid,
+            List<DashboardCategory> target) {
         XmlResourceParser parser = null;
         try {
-            parser = getResources().getXml(resid);
+            parser = context.getResources().getXml(resid);
             AttributeSet attrs = Xml.asAttributeSet(parser);
 
             int type;
@@ -989,7 +1225,7 @@ public class SettingsActivity extends Activity
                 if ("dashboard-category".equals(nodeName)) {
                     DashboardCategory category = new DashboardCategory();
 
-                    TypedArray sa = obtainStyledAttributes(
+                    TypedArray sa = context.obtainStyledAttributes(
                             attrs, com.android.internal.R.styleable.PreferenceHeader);
                     category.id = sa.getResourceId(
                             com.android.internal.R.styleable.PreferenceHeader_id,
@@ -1017,7 +1253,7 @@ public class SettingsActivity extends Activity
                         if (innerNodeName.equals("dashboard-tile")) {
                             DashboardTile tile = new DashboardTile();
 
-                            sa = obtainStyledAttributes(
+                            sa = context.obtainStyledAttributes(
                                     attrs, com.android.internal.R.styleable.PreferenceHeader);
                             tile.id = sa.getResourceId(
                                     com.android.internal.R.styleable.PreferenceHeader_id,
@@ -1059,11 +1295,13 @@ public class SettingsActivity extends Activity
 
                                 String innerNodeName2 = parser.getName();
                                 if (innerNodeName2.equals("extra")) {
-                                    getResources().parseBundleExtra("extra", attrs, curBundle);
+                                    context.getResources().parseBundleExtra("extra", attrs,
+                                            curBundle);
                                     XmlUtils.skipCurrentTag(parser);
 
                                 } else if (innerNodeName2.equals("intent")) {
-                                    tile.intent = Intent.parseIntent(getResources(), parser, attrs);
+                                    tile.intent = Intent.parseIntent(context.getResources(),
+                                            parser, attrs);
 
                                 } else {
                                     XmlUtils.skipCurrentTag(parser);
@@ -1076,7 +1314,7 @@ public class SettingsActivity extends Activity
                             }
 
                             // Show the SIM Cards setting if there are more than 2 SIMs installed.
-                            if(tile.id != R.id.sim_settings || Utils.showSimCardTile(this)){
+                            if(tile.id != R.id.sim_settings || Utils.showSimCardTile(context)){
                                 category.addTile(tile);
                             }
 
@@ -1084,7 +1322,7 @@ public class SettingsActivity extends Activity
 			    if (tile.id == R.id.superuser) {
 				category.removeTile(tile);
 				Log.i(LOG_TAG, "loadCategoriesFromResource(): Superuser Tile encountered");
-                                PackageManager pm = getPackageManager();
+                                PackageManager pm = context.getPackageManager();
 				List<PackageInfo> packages = pm.getInstalledPackages(0);
 				ListIterator<PackageInfo> piIter = packages.listIterator();
 				while(piIter.hasNext()) {
@@ -1118,12 +1356,12 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private void updateTilesList(List<DashboardCategory> target) {
-        final boolean showDev = mDevelopmentPreferences.getBoolean(
-                DevelopmentSettings.PREF_SHOW,
-                android.os.Build.TYPE.equals("eng"));
-
-        final UserManager um = (UserManager) getSystemService(Context.USER_SERVICE);
+    private static void updateTilesList(Context context, CategoriesKey key,
+            CategoriesResult result) {
+        final List<DashboardCategory> target = result.categories;
+        final boolean showDev = key.showDev;
+        final PackageManager pm = context.getPackageManager();
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
 
         final int size = target.size();
         for (int i = 0; i < size; i++) {
@@ -1139,17 +1377,17 @@ public class SettingsActivity extends Activity
                 boolean removeTile = false;
                 id = (int) tile.id;
                 if (id == R.id.operator_settings || id == R.id.manufacturer_settings) {
-                    if (!Utils.updateTileToSpecificActivityFromMetaDataOrRemove(this, tile)) {
+                    if (!Utils.updateTileToSpecificActivityFromMetaDataOrRemove(context, tile)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.wifi_settings) {
                     // Remove WiFi Settings if WiFi service is not available.
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
+                    if (!pm.hasSystemFeature(PackageManager.FEATURE_WIFI)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.bluetooth_settings) {
                     // Remove Bluetooth Settings if Bluetooth service is not available.
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
+                    if (!pm.hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.data_usage_settings) {
@@ -1166,17 +1404,15 @@ public class SettingsActivity extends Activity
                 } else if (id == R.id.battery_settings) {
                     // Remove battery settings when battery is not available. (e.g. TV)
 
-                    if (!mBatteryPresent) {
+                    if (!key.batteryPresent) {
                         removeTile = true;
                     }
                 } else if (id == R.id.home_settings) {
-                    if (!updateHomeSettingTiles(tile)) {
+                    if (!updateHomeSettingTiles(context, tile, result)) {
                         removeTile = true;
                     }
                 } else if (id == R.id.user_settings) {
-                    boolean hasMultipleUsers =
-                            ((UserManager) getSystemService(Context.USER_SERVICE))
-                                    .getUserCount() > 1;
+                    boolean hasMultipleUsers = um.getUserCount() > 1;
                     if (!UserHandle.MU_ENABLED
                             || (!UserManager.supportsMultipleUsers()
                                     && !hasMultipleUsers)
@@ -1184,19 +1420,19 @@ public class SettingsActivity extends Activity
                         removeTile = true;
                     }
                 } else if (id == R.id.nfc_payment_settings) {
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC)) {
+                    if (!pm.hasSystemFeature(PackageManager.FEATURE_NFC)) {
                         removeTile = true;
                     } else {
                         // Only show if NFC is on and we have the HCE feature
-                        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
+                        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(context);
                         if (adapter == null || !adapter.isEnabled() ||
-                                !getPackageManager().hasSystemFeature(
+                                !pm.hasSystemFeature(
                                         PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)) {
                             removeTile = true;
                         }
                     }
                 } else if (id == R.id.print_settings) {
-                    boolean hasPrintingSupport = getPackageManager().hasSystemFeature(
+                    boolean hasPrintingSupport = pm.hasSystemFeature(
                             PackageManager.FEATURE_PRINTING);
                     if (!hasPrintingSupport) {
                         removeTile = true;
@@ -1208,7 +1444,7 @@ public class SettingsActivity extends Activity
                     }
                 }
 
-                if (UserHandle.MU_ENABLED && UserHandle.myUserId() != 0
+                if (UserHandle.MU_ENABLED && key.userId != 0
                         && !ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, id)) {
                     removeTile = true;
                 }
@@ -1221,24 +1457,21 @@ public class SettingsActivity extends Activity
         }
     }
 
-    private boolean updateHomeSettingTiles(DashboardTile tile) {
+    private static boolean updateHomeSettingTiles(Context context, DashboardTile tile,
+            CategoriesResult result) {
         // Once we decide to show Home settings, keep showing it forever
-        SharedPreferences sp = getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
+        SharedPreferences sp = context.getSharedPreferences(HomeSettings.HOME_PREFS,
+                Context.MODE_PRIVATE);
         if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
             return true;
         }
 
         try {
-            mHomeActivitiesCount = getHomeActivitiesCount();
-            if (mHomeActivitiesCount < 2) {
+            result.homeActivitiesCount = getHomeActivitiesCount(context);
+            if (result.homeActivitiesCount < 2) {
                 // When there's only one available home app, omit this settings
-                // category entirely at the top level UI.  If the user just
-                // uninstalled the penultimate home app candidiate, we also
-                // now tell them about why they aren't seeing 'Home' in the list.
-                if (sShowNoHomeNotice) {
-                    sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
-                }
+                // category entirely at the top level UI. The notice telling the user
+                // why is shown once the categories are applied.
                 return false;
             } else {
                 // Okay, we're allowing the Home settings category.  Tell it, when
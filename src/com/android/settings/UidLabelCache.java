@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.drawable.Drawable;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide cache of the label, package and icon resolved for a uid, so that screens that
+ * show uids (battery usage for instance) do not go back to the package manager every time they
+ * are shown.
+ *
+ * Entries of a uid are dropped when one of its packages is added, changed or removed, or when
+ * its packages become (un)available on external storage. Everything is dropped on a locale
+ * change. Other caches of what is shown for uids follow the same invalidation through an
+ * {@link InvalidationListener} rather than listening for the broadcasts themselves.
+ */
+public class UidLabelCache {
+    private static final String TAG = "UidLabelCache";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_ENTRIES = 128;
+
+    private static UidLabelCache sInstance;
+
+    /**
+     * What was resolved for a uid.
+     */
+    public static class Entry {
+        public final String label;
+        public final String packageName;
+        public final Drawable icon;
+
+        public Entry(String label, String packageName, Drawable icon) {
+            this.label = label;
+            this.packageName = packageName;
+            this.icon = icon;
+        }
+    }
+
+    /**
+     * Notified when entries are dropped, on the thread dropping them (the main thread for
+     * package broadcasts).
+     */
+    public interface InvalidationListener {
+        public void onUidInvalidated(int uid);
+        public void onAllInvalidated();
+    }
+
+    private final CopyOnWriteArrayList<InvalidationListener> mListeners =
+            new CopyOnWriteArrayList<InvalidationListener>();
+
+    private final LruCache<Integer, Entry> mCache = new LruCache<Integer, Entry>(MAX_ENTRIES);
+
+    // Bumped on each invalidation, so that entries resolved before it are not cached
+    private final Object mLock = new Object();
+    private int mGeneration;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                invalidateAll();
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                if (uids == null) {
+                    invalidateAll();
+                    return;
+                }
+                for (int uid : uids) {
+                    invalidate(uid);
+                }
+            } else {
+                final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid < 0) {
+                    invalidateAll();
+                } else {
+                    invalidate(uid);
+                }
+            }
+        }
+    };
+
+    public static synchronized UidLabelCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidLabelCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UidLabelCache(Context context) {
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, packageFilter, null, null);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        context.registerReceiverAsUser(mReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    public void addInvalidationListener(InvalidationListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeInvalidationListener(InvalidationListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns what was resolved for the given uid, or null if it has to be resolved again.
+     */
+    public Entry get(int uid) {
+        return mCache.get(uid);
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}, taken before resolving an entry.
+     */
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Caches what was resolved for the given uid, unless the cache was invalidated since
+     * {@link #getGeneration} returned the given generation.
+     */
+    public void put(int uid, Entry entry, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mCache.put(uid, entry);
+            }
+        }
+    }
+
+    public void invalidate(int uid) {
+        if (DEBUG) Log.i(TAG, "Invalidating uid " + uid);
+        synchronized (mLock) {
+            mGeneration++;
+            mCache.remove(uid);
+        }
+        for (InvalidationListener listener : mListeners) {
+            listener.onUidInvalidated(uid);
+        }
+    }
+
+    public void invalidateAll() {
+        if (DEBUG) Log.i(TAG, "Invalidating all uids");
+        synchronized (mLock) {
+            mGeneration++;
+            mCache.evictAll();
+        }
+        for (InvalidationListener listener : mListeners) {
+            listener.onAllInvalidated();
+        }
+    }
+}
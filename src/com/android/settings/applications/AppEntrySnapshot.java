@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An on-disk snapshot of the labels and sizes of the application entries, so that a cold
+ * {@link ApplicationsState} can show the list (and sort it by size) before the package manager
+ * has been asked again.
+ *
+ * A record is only used for the apk it was taken from: the source dir, the apk length and the
+ * apk modification time (which is the last update time of the package) must all match.
+ * Labels are only used in the locale they were loaded in.
+ */
+class AppEntrySnapshot {
+    static final String TAG = "AppEntrySnapshot";
+
+    private static final String FILE_NAME = "app_entries_snapshot";
+    private static final int VERSION = 1;
+
+    static class Record {
+        String packageName;
+        String sourceDir;
+        long apkLength;
+        long apkLastModified;
+
+        String label;
+
+        long size = ApplicationsState.SIZE_UNKNOWN;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+
+        boolean hasSize() {
+            return size >= 0;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Record> mRecords = new HashMap<String, Record>();
+    private String mLocale;
+
+    AppEntrySnapshot(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Returns the record of the given application if it was taken from the same apk.
+     */
+    Record get(ApplicationInfo info, File apkFile) {
+        final Record record = mRecords.get(info.packageName);
+        if (record == null || !record.sourceDir.equals(info.sourceDir)) {
+            return null;
+        }
+        if (record.apkLength != apkFile.length()
+                || record.apkLastModified != apkFile.lastModified()) {
+            return null;
+        }
+        return record;
+    }
+
+    boolean hasLabelsFor(String locale) {
+        return mLocale != null && mLocale.equals(locale);
+    }
+
+    int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * Reads the snapshot. A missing or unreadable snapshot is simply empty.
+     */
+    void load() {
+        mRecords.clear();
+        mLocale = null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final String locale = in.readUTF();
+            final int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                final Record record = new Record();
+                record.packageName = in.readUTF();
+                record.sourceDir = in.readUTF();
+                record.apkLength = in.readLong();
+                record.apkLastModified = in.readLong();
+                record.label = in.readUTF();
+                record.size = in.readLong();
+                record.internalSize = in.readLong();
+                record.externalSize = in.readLong();
+                record.cacheSize = in.readLong();
+                record.codeSize = in.readLong();
+                record.dataSize = in.readLong();
+                record.externalCodeSize = in.readLong();
+                record.externalDataSize = in.readLong();
+                record.externalCacheSize = in.readLong();
+                mRecords.put(record.packageName, record);
+            }
+            mLocale = locale;
+        } catch (FileNotFoundException e) {
+            // No snapshot yet
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read snapshot, ignoring it", e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the given records. The apk of each record is stat'ed here, so
+     * this should not be called while holding a lock.
+     */
+    void save(String locale, ArrayList<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeInt(records.size());
+            for (int n = 0; n < records.size(); n++) {
+                final Record record = records.get(n);
+                final File apkFile = new File(record.sourceDir);
+                out.writeUTF(record.packageName);
+                out.writeUTF(record.sourceDir);
+                out.writeLong(apkFile.length());
+                out.writeLong(apkFile.lastModified());
+                out.writeUTF(record.label);
+                out.writeLong(record.size);
+                out.writeLong(record.internalSize);
+                out.writeLong(record.externalSize);
+                out.writeLong(record.cacheSize);
+                out.writeLong(record.codeSize);
+                out.writeLong(record.dataSize);
+                out.writeLong(record.externalCodeSize);
+                out.writeLong(record.externalDataSize);
+                out.writeLong(record.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
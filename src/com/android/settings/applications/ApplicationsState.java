@@ -23,6 +23,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +31,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -59,6 +66,13 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package size requests the package manager works on at once.
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 3;
+    // A size request with no answer after this long is issued again.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+    // Number of recently displayed packages whose sizes are computed first.
+    static final int MAX_PRIORITY_SIZE_PACKAGES = 32;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -115,6 +129,12 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
+        // Collation key of the label, guarded by sCollatorLock.  It is only
+        // valid for collationLabel and for the collator of collationGeneration.
+        CollationKey collationKey;
+        String collationLabel;
+        int collationGeneration;
+
         AppEntry(Context context, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
@@ -123,6 +143,39 @@ public class ApplicationsState {
             this.sizeStale = true;
             ensureLabel(context);
         }
+
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntrySnapshot.Record record,
+                boolean useLabel) {
+            apkFile = new File(info.sourceDir);
+            this.id = id;
+            this.info = info;
+            this.size = SIZE_UNKNOWN;
+            this.sizeStale = true;
+            if (useLabel) {
+                // The snapshot was taken from this very apk, so it is mounted.
+                this.mounted = true;
+                this.label = record.label;
+            } else {
+                ensureLabel(context);
+            }
+        }
+
+        AppEntrySnapshot.Record toSnapshotRecordLocked() {
+            AppEntrySnapshot.Record record = new AppEntrySnapshot.Record();
+            record.packageName = info.packageName;
+            record.sourceDir = info.sourceDir;
+            record.label = label;
+            record.size = size;
+            record.internalSize = internalSize;
+            record.externalSize = externalSize;
+            record.cacheSize = cacheSize;
+            record.codeSize = codeSize;
+            record.dataSize = dataSize;
+            record.externalCodeSize = externalCodeSize;
+            record.externalDataSize = externalDataSize;
+            record.externalCacheSize = externalCacheSize;
+            return record;
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
@@ -160,8 +213,40 @@ public class ApplicationsState {
         }
     }
 
+    // The collator of the default locale and the collation keys made with it.
+    static final Object sCollatorLock = new Object();
+    static Collator sCollator;
+    static Locale sCollatorLocale;
+    static int sCollatorGeneration;
+
+    /**
+     * Returns the collation key of the label of the entry, computing it only when the
+     * label or the default locale changed.
+     */
+    static CollationKey getCollationKey(AppEntry entry) {
+        synchronized (sCollatorLock) {
+            Locale locale = Locale.getDefault();
+            if (!locale.equals(sCollatorLocale)) {
+                sCollator = Collator.getInstance(locale);
+                sCollatorLocale = locale;
+                sCollatorGeneration++;
+            }
+            String label = entry.label;
+            if (entry.collationKey == null || entry.collationLabel != label
+                    || entry.collationGeneration != sCollatorGeneration) {
+                entry.collationKey = sCollator.getCollationKey(label != null ? label : "");
+                entry.collationLabel = label;
+                entry.collationGeneration = sCollatorGeneration;
+            }
+            return entry.collationKey;
+        }
+    }
+
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        return getCollationKey(object1).compareTo(getCollationKey(object2));
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,43 +256,69 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
+    /**
+     * Sorts the entries.  If the entries were sorted with the same comparator before,
+     * they are first put back in that order, so that the sort only has to move the few
+     * entries whose size or label changed since.
+     */
+    static void sortEntries(ArrayList<AppEntry> entries, Comparator<AppEntry> comparator,
+            ArrayList<AppEntry> previousOrder) {
+        if (previousOrder != null) {
+            HashSet<AppEntry> remaining = new HashSet<AppEntry>(entries);
+            ArrayList<AppEntry> ordered = new ArrayList<AppEntry>(entries.size());
+            for (int i=0; i<previousOrder.size(); i++) {
+                AppEntry entry = previousOrder.get(i);
+                if (remaining.remove(entry)) {
+                    ordered.add(entry);
+                }
+            }
+            for (int i=0; i<entries.size(); i++) {
+                AppEntry entry = entries.get(i);
+                if (remaining.contains(entry)) {
+                    ordered.add(entry);
+                }
+            }
+            entries.clear();
+            entries.addAll(ordered);
+        }
+        // The merge sort of the collections runs in linear time on sorted input.
+        Collections.sort(entries, comparator);
+    }
+
     public static final AppFilter THIRD_PARTY_FILTER = new AppFilter() {
         public void init() {
         }
@@ -266,23 +377,45 @@ public class ApplicationsState {
     final Context mContext;
     final PackageManager mPm;
     final int mRetrieveFlags;
+    // Registered to match mResumed by updatePackageReceiver().  Guarded by
+    // mPackageReceiverLock, which is never taken while holding mEntriesMap.
+    final Object mPackageReceiverLock = new Object();
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  mEntriesMap itself may be read without
+    // the lock, and each AppEntry has its own lock.  Never call into the
+    // package manager while holding mEntriesMap: the main thread needs it.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    final AtomicLong mCurId = new AtomicLong(1);
+    // Size requests in flight: package name -> uptime of the request.
+    final HashMap<String, Long> mComputingSizePkgs = new HashMap<String, Long>();
+    // Recently displayed packages, the most recent last.
+    final ArrayList<String> mPrioritySizePkgs = new ArrayList<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
+
+    // Metrics of the current size computation pass.
+    long mSizePassStart;
+    int mSizesComputed;
+    long mSizeLatencyTotal;
+    long mSizeLatencyMax;
     boolean mSessionsChanged;
 
+    // Labels and sizes of the last run, read by the background thread before its
+    // first message.  mSnapshot is set once the snapshot is loaded.
+    final AppEntrySnapshot mSnapshotFile;
+    volatile AppEntrySnapshot mSnapshot;
+    boolean mSnapshotLoaded;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -430,6 +563,7 @@ public class ApplicationsState {
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mSnapshotFile = new AppEntrySnapshot(mContext.getCacheDir());
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -475,21 +609,35 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        // How mLastAppList was built, only touched by the background thread.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
         public void resume() {
-            if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
-            synchronized (mEntriesMap) {
-                if (!mResumed) {
-                    mResumed = true;
-                    mSessionsChanged = true;
-                    doResumeIfNeededLocked();
+            List<ApplicationInfo> apps = null;
+            while (true) {
+                if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+                synchronized (mEntriesMap) {
+                    if (mResumed) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
+                        return;
+                    }
+                    if (ApplicationsState.this.mResumed || apps != null) {
+                        mResumed = true;
+                        mSessionsChanged = true;
+                        doResumeIfNeededLocked(apps);
+                        if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
+                        break;
+                    }
                 }
+                // Query the package manager without holding the lock, then try again.
+                apps = loadInstalledApplications();
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
+            updatePackageReceiver();
         }
 
         public void pause() {
@@ -503,6 +651,7 @@ public class ApplicationsState {
                 }
                 if (DEBUG_LOCKING) Log.v(TAG, "...pause releasing lock");
             }
+            updatePackageReceiver();
         }
 
         // Creates a new list of app entries with the given filter and comparator.
@@ -573,22 +722,33 @@ public class ApplicationsState {
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = obtainEntry(info);
+                    if (entry == null) {
+                        // Removed while rebuilding; the removal rebuilds again.
+                        continue;
+                    }
+                    synchronized (entry) {
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    getCollationKey(entry);
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
                 }
             }
 
-            Collections.sort(filteredApps, comparator);
+            ArrayList<AppEntry> previousOrder = null;
+            synchronized (mRebuildSync) {
+                if (comparator == mLastComparator && filter == mLastFilter) {
+                    previousOrder = mLastAppList;
+                }
+            }
+            sortEntries(filteredApps, comparator, previousOrder);
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
+                    mLastFilter = filter;
+                    mLastComparator = comparator;
                     if (!mRebuildAsync) {
                         mRebuildResult = filteredApps;
                         mRebuildSync.notifyAll();
@@ -621,19 +781,39 @@ public class ApplicationsState {
         return s;
     }
 
-    void doResumeIfNeededLocked() {
+    List<ApplicationInfo> loadInstalledApplications() {
+        List<ApplicationInfo> apps = mPm.getInstalledApplications(mRetrieveFlags);
+        return apps != null ? apps : new ArrayList<ApplicationInfo>();
+    }
+
+    /**
+     * Registers the package receiver if resumed, and unregisters it otherwise.  These
+     * are binder calls, so this must be called without holding mEntriesMap, after
+     * resuming or pausing under it.
+     */
+    void updatePackageReceiver() {
+        synchronized (mPackageReceiverLock) {
+            final boolean resumed;
+            synchronized (mEntriesMap) {
+                resumed = mResumed;
+            }
+            if (resumed && mPackageIntentReceiver == null) {
+                mPackageIntentReceiver = new PackageIntentReceiver();
+                mPackageIntentReceiver.registerReceiver();
+            } else if (!resumed && mPackageIntentReceiver != null) {
+                mPackageIntentReceiver.unregisterReceiver();
+                mPackageIntentReceiver = null;
+            }
+        }
+    }
+
+    // The installed applications are queried by the caller, without holding the lock.
+    void doResumeIfNeededLocked(List<ApplicationInfo> apps) {
         if (mResumed) {
             return;
         }
         mResumed = true;
-        if (mPackageIntentReceiver == null) {
-            mPackageIntentReceiver = new PackageIntentReceiver();
-            mPackageIntentReceiver.registerReceiver();
-        }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
-        }
+        mApplications = apps;
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
@@ -642,7 +822,10 @@ public class ApplicationsState {
             mAppEntries.clear();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
-                mAppEntries.get(i).sizeStale = true;
+                final AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    entry.sizeStale = true;
+                }
             }
         }
 
@@ -664,7 +847,7 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -684,28 +867,102 @@ public class ApplicationsState {
             }
         }
         mResumed = false;
-        if (mPackageIntentReceiver != null) {
-            mPackageIntentReceiver.unregisterReceiver();
-            mPackageIntentReceiver = null;
+        // Nobody is looking at sizes anymore: stop issuing size requests.  The
+        // answers of the requests in flight are still applied when they arrive.
+        mBackgroundHandler.removeMessages(BackgroundHandler.MSG_LOAD_SIZES);
+        mBackgroundHandler.removeMessages(BackgroundHandler.MSG_EXPIRE_SIZE_REQUESTS);
+        mComputingSizePkgs.clear();
+        mPrioritySizePkgs.clear();
+        scheduleSaveSnapshotLocked();
+    }
+
+    /**
+     * Sets how many package size requests may be in flight at once.
+     */
+    void setMaxSizeRequests(int maxRequests) {
+        synchronized (mEntriesMap) {
+            mMaxSizeRequests = Math.max(1, maxRequests);
         }
     }
 
-    AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+    /**
+     * Computes the size of the given package before the others, typically because
+     * it is displayed.
+     */
+    void prioritizeSize(String packageName) {
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
+            if (!mResumed) {
+                return;
+            }
+            mPrioritySizePkgs.remove(packageName);
+            mPrioritySizePkgs.add(packageName);
+            if (mPrioritySizePkgs.size() > MAX_PRIORITY_SIZE_PACKAGES) {
+                mPrioritySizePkgs.remove(0);
+            }
+        }
+    }
+
+    void scheduleSaveSnapshotLocked() {
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_SAVE_SNAPSHOT)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_SAVE_SNAPSHOT);
+        }
+    }
+
+    String getCurrentLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    /**
+     * Reads the snapshot of the last run.  Only called on the background thread.
+     */
+    void ensureSnapshotLoaded() {
+        if (mSnapshotLoaded) {
+            return;
+        }
+        mSnapshotLoaded = true;
+        long start = SystemClock.uptimeMillis();
+        mSnapshotFile.load();
+        if (DEBUG) Log.i(TAG, "Loaded " + mSnapshotFile.size() + " snapshot records in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        mSnapshot = mSnapshotFile;
+    }
+
+    /**
+     * Writes the labels and sizes of the current entries.  Only called on the background
+     * thread.
+     */
+    void saveSnapshot() {
+        ArrayList<AppEntrySnapshot.Record> records = new ArrayList<AppEntrySnapshot.Record>();
+        synchronized (mEntriesMap) {
+            for (int i=0; i<mAppEntries.size(); i++) {
+                AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    if (entry.mounted && entry.label != null) {
+                        records.add(entry.toSnapshotRecordLocked());
                     }
                 }
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
+        }
+        if (records.size() > 0) {
+            mSnapshotFile.save(getCurrentLocale(), records);
+        }
+    }
+
+    AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
             return entry;
         }
+        ApplicationInfo info = null;
+        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        synchronized (mEntriesMap) {
+            int idx = indexOfApplicationInfoLocked(packageName);
+            if (idx >= 0) {
+                info = mApplications.get(idx);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
+        }
+        return info != null ? obtainEntry(info) : null;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -718,13 +975,8 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        if (mEntriesMap.containsKey(packageName)) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
@@ -734,7 +986,11 @@ public class ApplicationsState {
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
             for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
+                // The size observer only holds the entry's lock when it sets the sizes
+                final AppEntry entry = mAppEntries.get(i);
+                synchronized (entry) {
+                    sum += entry.cacheSize;
+                }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
         }
@@ -751,40 +1007,47 @@ public class ApplicationsState {
     }
 
     void addPackage(String pkgName) {
+        synchronized (mEntriesMap) {
+            if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+            if (!mResumed) {
+                // If we are not resumed, we will do a full query the
+                // next time we resume, so there is no reason to do work
+                // here.
+                return;
+            }
+            if (indexOfApplicationInfoLocked(pkgName) >= 0) {
+                if (DEBUG) Log.i(TAG, "Package already exists!");
+                return;
+            }
+        }
+        ApplicationInfo info;
         try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
+            info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
+        } catch (NameNotFoundException e) {
+            return;
+        }
+        synchronized (mEntriesMap) {
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
+            // Check again, things may have changed while querying the package manager.
+            if (!mResumed || indexOfApplicationInfoLocked(pkgName) >= 0) {
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already done");
+                return;
+            }
+            if (!info.enabled) {
+                if (info.enabledSetting
+                        != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
+                mHaveDisabledApps = true;
             }
-        } catch (NameNotFoundException e) {
+            mApplications.add(info);
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
         }
     }
 
@@ -824,20 +1087,74 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
+    /**
+     * Returns the entry of the given application, creating it if needed, or null if the
+     * application was removed meanwhile.  Must not be called while holding mEntriesMap, as
+     * creating an entry loads its label.
+     */
+    AppEntry obtainEntry(ApplicationInfo info) {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
-        if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.info != info) {
+                    entry.info = info;
+                }
+            }
+            return entry;
+        }
+
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        AppEntrySnapshot snapshot = mSnapshot;
+        AppEntrySnapshot.Record record = snapshot != null
+                ? snapshot.get(info, new File(info.sourceDir)) : null;
+        AppEntry newEntry;
+        if (record != null) {
+            newEntry = new AppEntry(mContext, info, mCurId.getAndIncrement(), record,
+                    snapshot.hasLabelsFor(getCurrentLocale()));
+            applySnapshotSize(newEntry, record);
+        } else {
+            newEntry = new AppEntry(mContext, info, mCurId.getAndIncrement());
+        }
+
+        synchronized (mEntriesMap) {
+            // Another thread may have created it in the meantime.
+            entry = mEntriesMap.get(info.packageName);
+            if (entry == null) {
+                // Or removed the package, which publishing the entry would undo.
+                if (indexOfApplicationInfoLocked(info.packageName) < 0) {
+                    if (DEBUG) Log.i(TAG, "Dropping entry of removed pkg " + info.packageName);
+                    return null;
+                }
+                entry = newEntry;
+                mEntriesMap.put(info.packageName, entry);
+                mAppEntries.add(entry);
+            }
         }
         return entry;
     }
 
+    /**
+     * Shows the sizes of the last run until they are computed again; the entry stays stale.
+     */
+    private void applySnapshotSize(AppEntry entry, AppEntrySnapshot.Record record) {
+        if (!record.hasSize()) {
+            return;
+        }
+        entry.size = record.size;
+        entry.internalSize = record.internalSize;
+        entry.externalSize = record.externalSize;
+        entry.cacheSize = record.cacheSize;
+        entry.codeSize = record.codeSize;
+        entry.dataSize = record.dataSize;
+        entry.externalCodeSize = record.externalCodeSize;
+        entry.externalDataSize = record.externalDataSize;
+        entry.externalCacheSize = record.externalCacheSize;
+        entry.sizeStr = getSizeStr(entry.size);
+        entry.internalSizeStr = getSizeStr(entry.internalSize);
+        entry.externalSizeStr = getSizeStr(entry.externalSize);
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -872,59 +1189,73 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_SNAPSHOT = 5;
+        // Kept apart from MSG_LOAD_SIZES, which is only posted if none is pending
+        static final int MSG_EXPIRE_SIZE_REQUESTS = 6;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                // The entry has its own lock, only the bookkeeping of the
+                // requests needs mEntriesMap.
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                        }
+                    }
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                    }
+                }
                 synchronized (mEntriesMap) {
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                    Long requestStart = mComputingSizePkgs.remove(stats.packageName);
+                    if (requestStart != null) {
+                        long latency = SystemClock.uptimeMillis() - requestStart;
+                        mSizesComputed++;
+                        mSizeLatencyTotal += latency;
+                        if (latency > mSizeLatencyMax) {
+                            mSizeLatencyMax = latency;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (requestStart != null || mComputingSizePkgs.isEmpty()) {
+                        if (!hasMessages(MSG_LOAD_SIZES)) {
+                            sendEmptyMessage(MSG_LOAD_SIZES);
+                        }
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
@@ -935,8 +1266,111 @@ public class ApplicationsState {
             super(looper);
         }
 
+        private boolean needsSizeLocked(AppEntry entry) {
+            return (entry.size == SIZE_UNKNOWN || entry.sizeStale)
+                    && !mComputingSizePkgs.containsKey(entry.info.packageName);
+        }
+
+        /**
+         * Picks the packages whose sizes should be requested now, or reports that all the
+         * sizes are computed.
+         */
+        private void collectSizeRequestsLocked(ArrayList<String> requests) {
+            if (!mResumed) {
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            expireSizeRequestsLocked(now);
+
+            // Sizes of the packages on screen come first, the most recent first.
+            for (int i=mPrioritySizePkgs.size()-1; i>=0; i--) {
+                if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                    return;
+                }
+                AppEntry entry = mEntriesMap.get(mPrioritySizePkgs.remove(i));
+                if (entry != null && needsSizeLocked(entry)) {
+                    requestSizeLocked(entry, now, requests);
+                }
+            }
+
+            boolean pending = false;
+            for (int i=0; i<mAppEntries.size(); i++) {
+                if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                    return;
+                }
+                AppEntry entry = mAppEntries.get(i);
+                if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
+                    pending = true;
+                    if (needsSizeLocked(entry)) {
+                        requestSizeLocked(entry, now, requests);
+                    }
+                }
+            }
+            if (pending || !mComputingSizePkgs.isEmpty()) {
+                return;
+            }
+
+            if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                scheduleSaveSnapshotLocked();
+                logSizeMetricsLocked(now);
+                mRunning = false;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                mMainHandler.sendMessage(m);
+            }
+        }
+
+        private void requestSizeLocked(AppEntry entry, long now, ArrayList<String> requests) {
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizePassStart == 0) {
+                mSizePassStart = now;
+            }
+            String packageName = entry.info.packageName;
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.put(packageName, now);
+            requests.add(packageName);
+        }
+
+        /**
+         * Forgets the requests that were not answered in time, so they are issued again.
+         */
+        private void expireSizeRequestsLocked(long now) {
+            Iterator<Map.Entry<String, Long>> it = mComputingSizePkgs.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> request = it.next();
+                if (request.getValue() < (now - SIZE_REQUEST_TIMEOUT)) {
+                    Log.w(TAG, "Size request of " + request.getKey() + " timed out");
+                    it.remove();
+                }
+            }
+        }
+
+        private void logSizeMetricsLocked(long now) {
+            if (mSizesComputed > 0) {
+                Log.i(TAG, "Computed " + mSizesComputed + " sizes in "
+                        + (now - mSizePassStart) + "ms with " + mMaxSizeRequests
+                        + " requests in flight, latency avg "
+                        + (mSizeLatencyTotal / mSizesComputed) + "ms max "
+                        + mSizeLatencyMax + "ms");
+            }
+            mSizePassStart = 0;
+            mSizesComputed = 0;
+            mSizeLatencyTotal = 0;
+            mSizeLatencyMax = 0;
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            // Entries are much cheaper to create from the snapshot of the last run.
+            ensureSnapshotLoaded();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -954,54 +1388,66 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_SAVE_SNAPSHOT: {
+                    saveSnapshot();
+                } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    ArrayList<ApplicationInfo> toLoad = new ArrayList<ApplicationInfo>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
-                            }
+                        for (int i=0; i<mApplications.size() && toLoad.size()<6; i++) {
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                toLoad.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    if (toLoad.size() > 0 && !mRunning) {
+                        mRunning = true;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                        mMainHandler.sendMessage(m);
+                    }
+                    // Labels are loaded without holding the lock.
+                    for (int i=0; i<toLoad.size(); i++) {
+                        obtainEntry(toLoad.get(i));
+                    }
 
-                    if (numDone >= 6) {
+                    if (toLoad.size() >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
+                    ArrayList<AppEntry> toLoad = new ArrayList<AppEntry>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
+                        for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
                             if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                                toLoad.add(entry);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
+                    // Icons are loaded under the lock of their entry only.
+                    int numDone = 0;
+                    for (int i=0; i<toLoad.size() && numDone<2; i++) {
+                        AppEntry entry = toLoad.get(i);
+                        synchronized (entry) {
+                            if (entry.ensureIconLocked(mContext, mPm)) {
+                                if (!mRunning) {
+                                    mRunning = true;
+                                    Message m = mMainHandler.obtainMessage(
+                                            MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                    mMainHandler.sendMessage(m);
+                                }
+                                numDone++;
+                            }
+                        }
+                    }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
@@ -1013,43 +1459,24 @@ public class ApplicationsState {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
-                case MSG_LOAD_SIZES: {
+                case MSG_LOAD_SIZES:
+                case MSG_EXPIRE_SIZE_REQUESTS: {
+                    ArrayList<String> requests = new ArrayList<String>();
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
-                            }
-                        }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
-                            Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
-                            mMainHandler.sendMessage(m);
+                        collectSizeRequestsLocked(requests);
+                        // If answers get lost, come back to expire their requests.
+                        removeMessages(MSG_EXPIRE_SIZE_REQUESTS);
+                        if (mResumed && !mComputingSizePkgs.isEmpty()) {
+                            sendEmptyMessageDelayed(MSG_EXPIRE_SIZE_REQUESTS,
+                                    SIZE_REQUEST_TIMEOUT);
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
+                    // Size requests are binder calls, issue them without holding the lock.
+                    for (int i=0; i<requests.size(); i++) {
+                        mPm.getPackageSizeInfo(requests.get(i), mStatsObserver);
+                    }
                 } break;
             }
         }
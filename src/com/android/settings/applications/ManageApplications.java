@@ -804,6 +804,7 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            boolean sizeStale;
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
@@ -814,6 +815,7 @@ public class ManageApplications extends Fragment implements
                     holder.appIcon.setImageDrawable(entry.icon);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                sizeStale = entry.sizeStale;
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
                     holder.disabled.setVisibility(View.VISIBLE);
                     holder.disabled.setText(R.string.not_installed);
@@ -831,6 +833,10 @@ public class ManageApplications extends Fragment implements
                     holder.checkBox.setVisibility(View.GONE);
                 }
             }
+            if (sizeStale) {
+                // Compute the sizes of the displayed apps first.
+                mState.prioritizeSize(entry.info.packageName);
+            }
             mActive.remove(convertView);
             mActive.add(convertView);
             return convertView;
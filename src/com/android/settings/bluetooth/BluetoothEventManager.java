@@ -26,11 +26,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -52,6 +55,23 @@ final class BluetoothEventManager {
     private final Collection<BluetoothCallback> mCallbacks =
             new ArrayList<BluetoothCallback>();
 
+    // Devices found on the main thread are reported to the callbacks once per frame, so that
+    // a burst of ACTION_FOUND broadcasts only updates the device list once
+    private final LinkedHashSet<CachedBluetoothDevice> mPendingAddedDevices =
+            new LinkedHashSet<CachedBluetoothDevice>();
+    private final Choreographer.FrameCallback mDispatchAddedCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            final ArrayList<CachedBluetoothDevice> devices =
+                    new ArrayList<CachedBluetoothDevice>(mPendingAddedDevices);
+            mPendingAddedDevices.clear();
+            for (CachedBluetoothDevice cachedDevice : devices) {
+                dispatchDeviceAddedNow(cachedDevice);
+            }
+        }
+    };
+
     interface Handler {
         void onReceive(Context context, Intent intent, BluetoothDevice device);
     }
@@ -159,6 +179,10 @@ final class BluetoothEventManager {
                                     BluetoothAdapter.ERROR);
             // update local profiles and get paired devices
             mLocalAdapter.setBluetoothStateInt(state);
+            if (state == BluetoothAdapter.STATE_TURNING_OFF) {
+                // The non-bonded devices are about to be cleared, do not report them after that
+                clearPendingAddedDevices();
+            }
             // send callback to update UI and possibly start scanning
             synchronized (mCallbacks) {
                 for (BluetoothCallback callback : mCallbacks) {
@@ -212,6 +236,28 @@ final class BluetoothEventManager {
     }
 
     private void dispatchDeviceAdded(CachedBluetoothDevice cachedDevice) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            dispatchDeviceAddedNow(cachedDevice);
+            return;
+        }
+        if (mPendingAddedDevices.isEmpty()) {
+            Choreographer.getInstance().postFrameCallback(mDispatchAddedCallback);
+        }
+        mPendingAddedDevices.add(cachedDevice);
+    }
+
+    /**
+     * Drops the devices found but not reported yet, for when they are cleared from the cache.
+     * Must be called on the main thread.
+     */
+    void clearPendingAddedDevices() {
+        if (!mPendingAddedDevices.isEmpty()) {
+            Choreographer.getInstance().removeFrameCallback(mDispatchAddedCallback);
+            mPendingAddedDevices.clear();
+        }
+    }
+
+    private void dispatchDeviceAddedNow(CachedBluetoothDevice cachedDevice) {
         synchronized (mCallbacks) {
             for (BluetoothCallback callback : mCallbacks) {
                 callback.onDeviceAdded(cachedDevice);
@@ -228,6 +274,8 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
+                // Gone before it was reported
+                mPendingAddedDevices.remove(cachedDevice);
                 synchronized (mCallbacks) {
                     for (BluetoothCallback callback : mCallbacks) {
                         callback.onDeviceDeleted(cachedDevice);
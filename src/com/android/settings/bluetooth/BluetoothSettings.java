@@ -253,6 +253,7 @@ public final class BluetoothSettings extends DeviceListPreferenceFragment implem
             removeAllDevices();
         }
 
+        mLocalManager.getEventManager().clearPendingAddedDevices();
         mLocalManager.getCachedDeviceManager().clearNonBondedDevices();
         mAvailableDevicesCategory.removeAll();
         mInitialScanStarted = true;
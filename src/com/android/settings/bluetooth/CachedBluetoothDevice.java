@@ -21,10 +21,12 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.bluetooth.BluetoothAdapter;
 
 import java.util.ArrayList;
@@ -72,6 +74,17 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private final Collection<Callback> mCallbacks = new ArrayList<Callback>();
 
+    // Attribute changes made on the main thread are reported once per frame
+    private boolean mAttributesChangedPending;
+    private final Choreographer.FrameCallback mAttributesChangedCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mAttributesChangedPending = false;
+            dispatchAttributesChangedNow();
+        }
+    };
+
     // Following constants indicate the user's choices of Phone book/message access settings
     // User hasn't made any choice or settings app has wiped out the memory
     public final static int ACCESS_UNKNOWN = 0;
@@ -600,6 +613,17 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     }
 
     private void dispatchAttributesChanged() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            dispatchAttributesChangedNow();
+            return;
+        }
+        if (!mAttributesChangedPending) {
+            mAttributesChangedPending = true;
+            Choreographer.getInstance().postFrameCallback(mAttributesChangedCallback);
+        }
+    }
+
+    private void dispatchAttributesChangedNow() {
         synchronized (mCallbacks) {
             for (Callback callback : mCallbacks) {
                 callback.onDeviceAttributesChanged();
@@ -23,25 +23,39 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ *
+ * Devices are indexed by address. All changes to the set are made under the manager's lock,
+ * and each publishes a new immutable list that {@link #getCachedDevicesCopy} returns without
+ * copying or locking.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
     private Context mContext;
-    private final List<CachedBluetoothDevice> mCachedDevices =
-            new ArrayList<CachedBluetoothDevice>();
+    // Guarded by this, in the order the devices were added
+    private final LinkedHashMap<String, CachedBluetoothDevice> mCachedDevices =
+            new LinkedHashMap<String, CachedBluetoothDevice>();
+    // Published snapshot of mCachedDevices.values()
+    private volatile List<CachedBluetoothDevice> mCachedDevicesList =
+            Collections.emptyList();
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
-    public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+    /**
+     * Returns an immutable snapshot of the devices, which later changes do not affect.
+     */
+    public Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
+        return mCachedDevicesList;
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -66,30 +80,36 @@ final class CachedBluetoothDeviceManager {
      * @return the cached device object for this device, or null if it has
      *   not been previously seen
      */
-    CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+    synchronized CachedBluetoothDevice findDevice(BluetoothDevice device) {
+        return mCachedDevices.get(device.getAddress());
     }
 
     /**
      * Create and return a new {@link CachedBluetoothDevice}. This assumes
-     * that {@link #findDevice} has already been called and returned null.
+     * that {@link #findDevice} has already been called and returned null;
+     * if another thread added the device in between, that one is returned.
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
-    CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
+    synchronized CachedBluetoothDevice addDevice(LocalBluetoothAdapter adapter,
             LocalBluetoothProfileManager profileManager,
             BluetoothDevice device) {
-        CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
-            profileManager, device);
-        synchronized (mCachedDevices) {
-            mCachedDevices.add(newDevice);
+        final String address = device.getAddress();
+        CachedBluetoothDevice cachedDevice = mCachedDevices.get(address);
+        if (cachedDevice != null) {
+            log("addDevice: already added " + address);
+            return cachedDevice;
         }
-        return newDevice;
+        cachedDevice = new CachedBluetoothDevice(mContext, adapter, profileManager, device);
+        mCachedDevices.put(address, cachedDevice);
+        publishDevices();
+        return cachedDevice;
+    }
+
+    /** Publishes a new snapshot after a change, with the lock held. */
+    private void publishDevices() {
+        mCachedDevicesList = Collections.unmodifiableList(
+                new ArrayList<CachedBluetoothDevice>(mCachedDevices.values()));
     }
 
     /**
@@ -113,33 +133,32 @@ final class CachedBluetoothDeviceManager {
     }
 
     public synchronized void clearNonBondedDevices() {
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
-            if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                mCachedDevices.remove(i);
+        final Iterator<CachedBluetoothDevice> it = mCachedDevices.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getBondState() != BluetoothDevice.BOND_BONDED) {
+                it.remove();
             }
         }
+        publishDevices();
     }
 
-    public synchronized void onScanningStateChanged(boolean started) {
+    public void onScanningStateChanged(boolean started) {
         if (!started) return;
 
         // If starting a new scan, clear old visibility
-        // Iterate in reverse order since devices may be removed.
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        for (CachedBluetoothDevice cachedDevice : mCachedDevicesList) {
             cachedDevice.setVisible(false);
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    public void onBtClassChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
@@ -150,11 +169,12 @@ final class CachedBluetoothDeviceManager {
         // When Bluetooth is turning off, we need to clear the non-bonded devices
         // Otherwise, they end up showing up on the next BT enable
         if (bluetoothState == BluetoothAdapter.STATE_TURNING_OFF) {
-            for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-                CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+            final Iterator<CachedBluetoothDevice> it = mCachedDevices.values().iterator();
+            while (it.hasNext()) {
+                CachedBluetoothDevice cachedDevice = it.next();
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                     cachedDevice.setVisible(false);
-                    mCachedDevices.remove(i);
+                    it.remove();
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -162,8 +182,10 @@ final class CachedBluetoothDeviceManager {
                     cachedDevice.clearProfileConnectionState();
                 }
             }
+            publishDevices();
         }
     }
+
     private void log(String msg) {
         if (DEBUG) {
             Log.d(TAG, msg);
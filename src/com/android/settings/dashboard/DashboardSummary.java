@@ -25,6 +25,7 @@ import android.content.res.Resources;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -35,14 +36,55 @@ import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public class DashboardSummary extends Fragment {
     private static final String LOG_TAG = "DashboardSummary";
 
+    // Package broadcasts come in bursts (an update sends removed, added and replaced)
+    private static final long REBUILD_UI_DEBOUNCE_MS = 500;
+
     private LayoutInflater mLayoutInflater;
     private ViewGroup mDashboard;
 
+    /**
+     * A category view on the dashboard, and the title it shows.
+     */
+    private static final class CategoryViews {
+        final View categoryView;
+        final TextView title;
+        final ViewGroup content;
+        boolean bound;
+        CharSequence shownTitle;
+
+        CategoryViews(View categoryView) {
+            this.categoryView = categoryView;
+            title = (TextView) categoryView.findViewById(R.id.category_title);
+            content = (ViewGroup) categoryView.findViewById(R.id.category_content);
+        }
+    }
+
+    /**
+     * A tile view on the dashboard, and what it shows.
+     */
+    private static final class TileViews {
+        final DashboardTileView tileView;
+        boolean bound;
+        int shownIconRes;
+        CharSequence shownTitle;
+        CharSequence shownSummary;
+
+        TileViews(DashboardTileView tileView) {
+            this.tileView = tileView;
+        }
+    }
+
+    // What is on the dashboard, in order, and the tiles of it that can be reused by id
+    private ArrayList<CategoryViews> mCategoryViews = new ArrayList<CategoryViews>();
+    private HashMap<Long, TileViews> mTileViews = new HashMap<Long, TileViews>();
+
     private static final int MSG_REBUILD_UI = 1;
     private Handler mHandler = new Handler() {
         @Override
@@ -59,15 +101,26 @@ public class DashboardSummary extends Fragment {
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            rebuildUI(context);
+            if (!mHandler.hasMessages(MSG_REBUILD_UI)) {
+                mHandler.sendEmptyMessageDelayed(MSG_REBUILD_UI, REBUILD_UI_DEBOUNCE_MS);
+            }
         }
     }
     private HomePackageReceiver mHomePackageReceiver = new HomePackageReceiver();
 
+    private final SettingsActivity.CategoriesListener mCategoriesListener =
+            new SettingsActivity.CategoriesListener() {
+        @Override
+        public void onCategoriesChanged() {
+            sendRebuildUI();
+        }
+    };
+
     @Override
     public void onResume() {
         super.onResume();
 
+        ((SettingsActivity) getActivity()).addCategoriesListener(mCategoriesListener);
         sendRebuildUI();
 
         final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
@@ -82,7 +135,9 @@ public class DashboardSummary extends Fragment {
     public void onPause() {
         super.onPause();
 
+        ((SettingsActivity) getActivity()).removeCategoriesListener(mCategoriesListener);
         getActivity().unregisterReceiver(mHomePackageReceiver);
+        mHandler.removeMessages(MSG_REBUILD_UI);
     }
 
     @Override
@@ -93,82 +148,163 @@ public class DashboardSummary extends Fragment {
 
         final View rootView = inflater.inflate(R.layout.dashboard, container, false);
         mDashboard = (ViewGroup) rootView.findViewById(R.id.dashboard_container);
+        mCategoryViews.clear();
+        mTileViews.clear();
 
         return rootView;
     }
 
+    /**
+     * Brings the dashboard up to date with the categories of the activity. The category and
+     * tile views already on it are kept, matched by id, and only rebound if what they show
+     * changed.
+     */
     private void rebuildUI(Context context) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
         }
 
-        long start = System.currentTimeMillis();
+        final long start = SystemClock.elapsedRealtimeNanos();
         final Resources res = getResources();
 
-        mDashboard.removeAllViews();
-
         List<DashboardCategory> categories =
                 ((SettingsActivity) context).getDashboardCategories(true);
 
+        final HashMap<Long, CategoryViews> oldCategoryViews = new HashMap<Long, CategoryViews>();
+        for (CategoryViews categoryViews : mCategoryViews) {
+            oldCategoryViews.put((Long) categoryViews.categoryView.getTag(), categoryViews);
+        }
+        final ArrayList<CategoryViews> newCategoryViews = new ArrayList<CategoryViews>();
+        final HashMap<Long, TileViews> newTileViews = new HashMap<Long, TileViews>();
+        int rebound = 0;
+
         final int count = categories.size();
 
         for (int n = 0; n < count; n++) {
             DashboardCategory category = categories.get(n);
 
-            View categoryView = mLayoutInflater.inflate(R.layout.dashboard_category, mDashboard,
-                    false);
-
-            TextView categoryLabel = (TextView) categoryView.findViewById(R.id.category_title);
-            categoryLabel.setText(category.getTitle(res));
+            CategoryViews categoryViews = null;
+            if (category.id != DashboardCategory.CAT_ID_UNDEFINED) {
+                categoryViews = oldCategoryViews.remove(category.id);
+            }
+            if (categoryViews == null) {
+                categoryViews = new CategoryViews(mLayoutInflater.inflate(
+                        R.layout.dashboard_category, mDashboard, false));
+                categoryViews.categoryView.setTag(category.id);
+            }
 
-            ViewGroup categoryContent =
-                    (ViewGroup) categoryView.findViewById(R.id.category_content);
+            final CharSequence title = category.getTitle(res);
+            if (!categoryViews.bound || !TextUtils.equals(categoryViews.shownTitle, title)) {
+                categoryViews.title.setText(title);
+                categoryViews.shownTitle = title;
+                categoryViews.bound = true;
+            }
 
+            final ViewGroup categoryContent = categoryViews.content;
             final int tilesCount = category.getTilesCount();
             for (int i = 0; i < tilesCount; i++) {
                 DashboardTile tile = category.getTile(i);
 
-                DashboardTileView tileView = new DashboardTileView(context);
-                updateTileView(context, res, tile, tileView.getImageView(),
-                        tileView.getTitleTextView(), tileView.getStatusTextView());
-
-                tileView.setTile(tile);
-
-                categoryContent.addView(tileView);
+                TileViews tileViews = null;
+                if (tile.id != DashboardTile.TILE_ID_UNDEFINED) {
+                    tileViews = mTileViews.remove(tile.id);
+                }
+                if (tileViews == null) {
+                    tileViews = new TileViews(new DashboardTileView(context));
+                }
+                if (updateTileView(res, tile, tileViews)) {
+                    rebound++;
+                }
+                tileViews.tileView.setTile(tile);
+                // DashboardContainerView only hides the divider of the last row, so a
+                // reused tile that is no longer last needs it back
+                tileViews.tileView.setDividerVisibility(true);
+                placeView(categoryContent, tileViews.tileView, i);
+                if (tile.id != DashboardTile.TILE_ID_UNDEFINED) {
+                    newTileViews.put(tile.id, tileViews);
+                }
             }
+            removeViewsFrom(categoryContent, tilesCount);
 
             // Add the category
-            mDashboard.addView(categoryView);
+            placeView(mDashboard, categoryViews.categoryView, n);
+            newCategoryViews.add(categoryViews);
         }
-        long delta = System.currentTimeMillis() - start;
-        Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
+        removeViewsFrom(mDashboard, count);
+
+        mCategoryViews = newCategoryViews;
+        mTileViews = newTileViews;
+
+        long delta = SystemClock.elapsedRealtimeNanos() - start;
+        Log.d(LOG_TAG, "rebuildUI took: " + (delta / 1000) + " us, rebound " + rebound
+                + " of " + newTileViews.size() + " tiles");
     }
 
-    private void updateTileView(Context context, Resources res, DashboardTile tile,
-            ImageView tileIcon, TextView tileTextView, TextView statusTextView) {
+    /**
+     * Moves the view to the given position of the parent, taking it from wherever it is.
+     */
+    private static void placeView(ViewGroup parent, View view, int index) {
+        if (index < parent.getChildCount() && parent.getChildAt(index) == view) {
+            return;
+        }
+        final ViewGroup oldParent = (ViewGroup) view.getParent();
+        if (oldParent != null) {
+            oldParent.removeView(view);
+        }
+        parent.addView(view, index);
+    }
+
+    private static void removeViewsFrom(ViewGroup parent, int index) {
+        final int childCount = parent.getChildCount();
+        if (childCount > index) {
+            parent.removeViews(index, childCount - index);
+        }
+    }
 
-        if (tile.iconRes > 0) {
-            tileIcon.setImageResource(tile.iconRes);
-        } else {
-            tileIcon.setImageDrawable(null);
-            tileIcon.setBackground(null);
+    /**
+     * Shows the tile in the views, only touching what changed. Returns whether anything did.
+     */
+    private boolean updateTileView(Resources res, DashboardTile tile, TileViews tileViews) {
+        final boolean bound = tileViews.bound;
+        boolean changed = false;
+        final ImageView tileIcon = tileViews.tileView.getImageView();
+        if (!bound || tileViews.shownIconRes != tile.iconRes) {
+            if (tile.iconRes > 0) {
+                tileIcon.setImageResource(tile.iconRes);
+            } else {
+                tileIcon.setImageDrawable(null);
+                tileIcon.setBackground(null);
+            }
+            tileViews.shownIconRes = tile.iconRes;
+            changed = true;
         }
 
-        tileTextView.setText(tile.getTitle(res));
+        final CharSequence title = tile.getTitle(res);
+        if (!bound || !TextUtils.equals(tileViews.shownTitle, title)) {
+            tileViews.tileView.getTitleTextView().setText(title);
+            tileViews.shownTitle = title;
+            changed = true;
+        }
 
-        CharSequence summary = tile.getSummary(res);
-        if (!TextUtils.isEmpty(summary)) {
-            statusTextView.setVisibility(View.VISIBLE);
-            statusTextView.setText(summary);
-        } else {
-            statusTextView.setVisibility(View.GONE);
+        final CharSequence summary = tile.getSummary(res);
+        if (!bound || !TextUtils.equals(tileViews.shownSummary, summary)) {
+            final TextView statusTextView = tileViews.tileView.getStatusTextView();
+            if (!TextUtils.isEmpty(summary)) {
+                statusTextView.setVisibility(View.VISIBLE);
+                statusTextView.setText(summary);
+            } else {
+                statusTextView.setVisibility(View.GONE);
+            }
+            tileViews.shownSummary = summary;
+            changed = true;
         }
+        tileViews.bound = true;
+        return changed;
     }
 
     private void sendRebuildUI() {
-        if (!mHandler.hasMessages(MSG_REBUILD_UI)) {
-            mHandler.sendEmptyMessage(MSG_REBUILD_UI);
-        }
+        mHandler.removeMessages(MSG_REBUILD_UI);
+        mHandler.sendEmptyMessage(MSG_REBUILD_UI);
     }
 }
@@ -26,6 +26,12 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Message;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -42,7 +48,13 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SearchResultsSummary extends Fragment {
 
@@ -53,6 +65,91 @@ public class SearchResultsSummary extends Fragment {
 
     private static final String SAVE_KEY_SHOW_RESULTS = ":settings:show_results";
 
+    // Keystrokes closer than this are searched for together
+    private static final long QUERY_DEBOUNCE_MS = 150;
+
+    private static final int MSG_UPDATE_SEARCH_RESULTS = 1;
+    private static final int MSG_UPDATE_SUGGESTIONS = 2;
+
+    // The queries run one at a time on their own thread, so that they neither wait behind
+    // other AsyncTasks of the app nor race each other. A superseded query that did not start
+    // yet is dropped, and one that is running is interrupted through its CancellationSignal.
+    private static final ThreadPoolExecutor sQueryExecutor = new ThreadPoolExecutor(
+            1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "SearchQuery");
+                }
+            });
+
+    static {
+        sQueryExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Counts latencies in power of two buckets of milliseconds, from under 16ms to 1s and more.
+     */
+    private static final class LatencyHistogram {
+        private static final int FIRST_BUCKET_MS = 16;
+        private static final int BUCKETS = 8;
+
+        private final String mName;
+        private final int[] mCounts = new int[BUCKETS];
+        private int mTotal;
+        private long mMaxMs;
+
+        LatencyHistogram(String name) {
+            mName = name;
+        }
+
+        synchronized void add(long ms) {
+            int bucket = 0;
+            for (long limit = FIRST_BUCKET_MS; ms >= limit && bucket < BUCKETS - 1; limit <<= 1) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotal++;
+            if (ms > mMaxMs) {
+                mMaxMs = ms;
+            }
+        }
+
+        synchronized void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix); pw.print(mName); pw.print(": count="); pw.print(mTotal);
+            pw.print(" max="); pw.print(mMaxMs); pw.println("ms");
+            long limit = FIRST_BUCKET_MS;
+            for (int n = 0; n < BUCKETS; n++, limit <<= 1) {
+                pw.print(prefix); pw.print("  ");
+                pw.print(n < BUCKETS - 1 ? "<" + limit : ">=" + (limit >> 1));
+                pw.print("ms: "); pw.println(mCounts[n]);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder sb = new StringBuilder(mName);
+            sb.append(" ");
+            long limit = FIRST_BUCKET_MS;
+            for (int n = 0; n < BUCKETS; n++, limit <<= 1) {
+                sb.append(n < BUCKETS - 1 ? "<" + limit : ">=" + (limit >> 1));
+                sb.append("ms=").append(mCounts[n]).append(' ');
+            }
+            return sb.append("max=").append(mMaxMs).append("ms").toString();
+        }
+    }
+
+    // From the keystroke to its results or suggestions being shown, and the query alone
+    private static final LatencyHistogram sKeystrokeLatency =
+            new LatencyHistogram("keystroke to results");
+    private static final LatencyHistogram sQueryLatency = new LatencyHistogram("query");
+
     private SearchView mSearchView;
 
     private ListView mResultsListView;
@@ -70,44 +167,128 @@ public class SearchResultsSummary extends Fragment {
 
     private boolean mShowResults;
 
+    // When the text the current query is for was typed
+    private long mQueryTime;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_UPDATE_SEARCH_RESULTS:
+                    updateSearchResults();
+                    break;
+                case MSG_UPDATE_SUGGESTIONS:
+                    updateSuggestions();
+                    break;
+            }
+        }
+    };
+
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A basic AsyncTask whose running query can be interrupted when it is cancelled
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private abstract class CancellableQueryTask extends AsyncTask<String, Void, Cursor> {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final Index mIndex = Index.getInstance(getActivity());
+        private final long mQueryTime;
+
+        CancellableQueryTask(long queryTime) {
+            mQueryTime = queryTime;
+        }
+
+        protected abstract Cursor query(Index index, String query, CancellationSignal signal);
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+            if (isCancelled()) {
+                return null;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                final Cursor cursor = query(mIndex, params[0], mCancellationSignal);
+                sQueryLatency.add(SystemClock.elapsedRealtime() - start);
+                return cursor;
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+        }
+
+        protected void onShown() {
+            sKeystrokeLatency.add(SystemClock.elapsedRealtime() - mQueryTime);
+        }
+
+        public void executeQuery(String query) {
+            executeOnExecutor(sQueryExecutor, query);
+        }
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * A basic AsyncTask for updating the query results cursor
+     */
+    private class UpdateSearchResultsTask extends CancellableQueryTask {
+        UpdateSearchResultsTask(long queryTime) {
+            super(queryTime);
+        }
+
+        @Override
+        protected Cursor query(Index index, String query, CancellationSignal signal) {
+            return index.search(query, signal);
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setResultsCursor(cursor);
                 setResultsVisibility(cursor.getCount() > 0);
+                onShown();
             } else if (cursor != null) {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSuggestionsTask extends CancellableQueryTask {
+        UpdateSuggestionsTask(long queryTime) {
+            super(queryTime);
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        protected Cursor query(Index index, String query, CancellationSignal signal) {
+            return index.getSuggestions(query, signal);
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setSuggestionsCursor(cursor);
                 setSuggestionsVisibility(cursor.getCount() > 0);
+                onShown();
             } else if (cursor != null) {
                 cursor.close();
             }
         }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     @Override
@@ -133,8 +314,22 @@ public class SearchResultsSummary extends Fragment {
     public void onStop() {
         super.onStop();
 
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
         clearSuggestions();
         clearResults();
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, sKeystrokeLatency.toString());
+            Log.d(LOG_TAG, sQueryLatency.toString());
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        sKeystrokeLatency.dump(prefix, writer);
+        sQueryLatency.dump(prefix, writer);
     }
 
     @Override
@@ -275,6 +470,7 @@ public class SearchResultsSummary extends Fragment {
 
     public boolean onQueryTextSubmit(String query) {
         mQuery = getFilteredQueryString(query);
+        mQueryTime = SystemClock.elapsedRealtime();
         mShowResults = true;
         setSuggestionsVisibility(false);
         updateSearchResults();
@@ -286,15 +482,18 @@ public class SearchResultsSummary extends Fragment {
         final String newQuery = getFilteredQueryString(query);
 
         mQuery = newQuery;
+        mQueryTime = SystemClock.elapsedRealtime();
 
+        // Drop what is running for the previous text, and wait for the typing to pause
+        clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             mShowResults = false;
             setResultsVisibility(false);
-            updateSuggestions();
+            sendUpdate(MSG_UPDATE_SUGGESTIONS, QUERY_DEBOUNCE_MS);
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            sendUpdate(MSG_UPDATE_SEARCH_RESULTS, QUERY_DEBOUNCE_MS);
         }
 
         return true;
@@ -303,12 +502,19 @@ public class SearchResultsSummary extends Fragment {
     public void showSomeSuggestions() {
         setResultsVisibility(false);
         mQuery = EMPTY_QUERY;
+        mQueryTime = SystemClock.elapsedRealtime();
         updateSuggestions();
     }
 
+    private void sendUpdate(int what, long delayMs) {
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
+        mHandler.sendEmptyMessageDelayed(what, delayMs);
+    }
+
     private void clearSuggestions() {
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -326,7 +532,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearResults() {
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         setResultsCursor(null);
@@ -359,33 +565,37 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearAllTasks() {
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
     }
 
     private void updateSuggestions() {
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
         clearAllTasks();
         if (mQuery == null) {
             setSuggestionsCursor(null);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            mUpdateSuggestionsTask = new UpdateSuggestionsTask(mQueryTime);
+            mUpdateSuggestionsTask.executeQuery(mQuery);
         }
     }
 
     private void updateSearchResults() {
+        mHandler.removeMessages(MSG_UPDATE_SEARCH_RESULTS);
+        mHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            mUpdateSearchResultsTask = new UpdateSearchResultsTask(mQueryTime);
+            mUpdateSearchResultsTask.executeQuery(mQuery);
         }
     }
 
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.LruCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Measures the disk usage of directory trees, remembering the listing of every directory
+ * keyed by its inode and modification time. Measuring a tree again only lists the directories
+ * that changed since; the others cost a single stat.
+ *
+ * A directory's modification time only changes when entries are added, removed or renamed in
+ * it, so files that grow in place are only picked up once their directory changes or the
+ * cache is invalidated. Only the listings of the most recently measured directories are kept,
+ * bounded by the length of their paths and names. Safe for use by several threads at once.
+ */
+class DirectorySizeCache {
+    // Directories modified this recently may still change within the same mtime second
+    private static final long MIN_STABLE_SECONDS = 2;
+
+    // Characters of the paths and names kept, about a megabyte of strings
+    private static final int MAX_CACHED_CHARS = 512 * 1024;
+
+    private static final class Node {
+        final long inode;
+        final long mtime;
+        // The directory itself and everything in it that is not a directory
+        final long ownSize;
+        final String[] childDirs;
+
+        Node(long inode, long mtime, long ownSize, String[] childDirs) {
+            this.inode = inode;
+            this.mtime = mtime;
+            this.ownSize = ownSize;
+            this.childDirs = childDirs;
+        }
+    }
+
+    private final LruCache<String, Node> mNodes = new LruCache<String, Node>(MAX_CACHED_CHARS) {
+        @Override
+        protected int sizeOf(String path, Node node) {
+            int size = path.length();
+            for (String child : node.childDirs) {
+                size += child.length();
+            }
+            return size;
+        }
+    };
+
+    /**
+     * Returns the disk usage in bytes of the given file or tree, leaving out the directories
+     * that cannot be read from this process. Those are added to {@code unreadable}, so that
+     * the caller can measure them another way; the whole path if it cannot be read at all.
+     */
+    long measure(File path, List<File> unreadable) {
+        final StructStat stat = lstat(path.getPath());
+        if (stat == null) {
+            unreadable.add(path);
+            return 0;
+        }
+        if (!OsConstants.S_ISDIR(stat.st_mode)) {
+            return stat.st_blocks * 512;
+        }
+        return measureDirectory(path.getPath(), stat, unreadable);
+    }
+
+    /**
+     * Forgets the listings of the given paths, their parents and everything below them.
+     */
+    void invalidate(List<File> paths) {
+        final HashSet<String> invalid = new HashSet<String>(paths.size());
+        for (File path : paths) {
+            invalid.add(path.getPath());
+        }
+        // A single pass over the listings, checking the parents of each against the paths
+        for (String key : mNodes.snapshot().keySet()) {
+            for (String dir = key; dir != null; dir = getParent(dir)) {
+                if (invalid.contains(dir)) {
+                    mNodes.remove(key);
+                    break;
+                }
+            }
+        }
+        for (File path : paths) {
+            for (File dir = path.getParentFile(); dir != null; dir = dir.getParentFile()) {
+                mNodes.remove(dir.getPath());
+            }
+        }
+    }
+
+    void invalidateAll() {
+        mNodes.evictAll();
+    }
+
+    private long measureDirectory(String path, StructStat stat, List<File> unreadable) {
+        Node node = mNodes.get(path);
+        if (node == null || node.inode != stat.st_ino || node.mtime != stat.st_mtime) {
+            node = scan(path, stat);
+            if (node == null) {
+                unreadable.add(new File(path));
+                return 0;
+            }
+            if (System.currentTimeMillis() / 1000 - stat.st_mtime >= MIN_STABLE_SECONDS) {
+                mNodes.put(path, node);
+            } else {
+                mNodes.remove(path);
+            }
+        }
+
+        long size = node.ownSize;
+        for (String child : node.childDirs) {
+            final String childPath = path + File.separator + child;
+            final StructStat childStat = lstat(childPath);
+            if (childStat == null || !OsConstants.S_ISDIR(childStat.st_mode)) {
+                // Changed under us; the parent will be listed again next time
+                mNodes.remove(path);
+                if (childStat != null) {
+                    size += childStat.st_blocks * 512;
+                }
+                continue;
+            }
+            size += measureDirectory(childPath, childStat, unreadable);
+        }
+        return size;
+    }
+
+    private static Node scan(String path, StructStat stat) {
+        final String[] names = new File(path).list();
+        if (names == null) {
+            return null;
+        }
+        long ownSize = stat.st_blocks * 512;
+        final ArrayList<String> childDirs = new ArrayList<String>();
+        for (String name : names) {
+            final StructStat childStat = lstat(path + File.separator + name);
+            if (childStat == null) {
+                continue;
+            }
+            if (OsConstants.S_ISDIR(childStat.st_mode)) {
+                childDirs.add(name);
+            } else {
+                ownSize += childStat.st_blocks * 512;
+            }
+        }
+        return new Node(stat.st_ino, stat.st_mtime, ownSize,
+                childDirs.toArray(new String[childDirs.size()]));
+    }
+
+    private static String getParent(String path) {
+        final int index = path.lastIndexOf(File.separatorChar);
+        return index > 0 ? path.substring(0, index) : null;
+    }
+
+    private static StructStat lstat(String path) {
+        try {
+            return Os.lstat(path);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+}
@@ -18,9 +18,17 @@ package com.android.settings.deviceinfo;
 
 import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.content.pm.ActivityInfo;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseBooleanArray;
@@ -54,6 +62,8 @@ public class MiscFilesHandler extends ListActivity {
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
+    private ModeCallback mModeCallback;
+    private DeleteTask mDeleteTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -68,10 +78,200 @@ public class MiscFilesHandler extends ListActivity {
         ListView lv = getListView();
         lv.setItemsCanFocus(true);
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
-        lv.setMultiChoiceModeListener(new ModeCallback(this));
+        mModeCallback = new ModeCallback(this);
+        lv.setMultiChoiceModeListener(mModeCallback);
         setListAdapter(mAdapter);
     } 
 
+    @Override
+    protected void onDestroy() {
+        if (mDeleteTask != null) {
+            mDeleteTask.cancel(false);
+            mDeleteTask.dismiss();
+            mDeleteTask = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Deletes the given items off the UI thread. Trees are walked iteratively, and progress is
+     * published after every {@link #BATCH_SIZE} deletions. Items that could not be deleted
+     * completely, or that were left when the deletion was cancelled, stay in the list.
+     */
+    private class DeleteTask extends AsyncTask<Void, Long, Void> {
+        private static final int BATCH_SIZE = 64;
+        private static final int PROGRESS_MAX = 1000;
+
+        private final ArrayList<FileInfo> mItems;
+        private final ArrayList<FileInfo> mDeleted = new ArrayList<FileInfo>();
+        private final long mTotalSize;
+        private final int mOldOrientation;
+        private final ProgressDialog mDialog;
+        private final String mProgressFormat;
+
+        private long mBytesFreed;
+        private long mItemsDeleted;
+        private int mBatchCount;
+
+        DeleteTask(ArrayList<FileInfo> items) {
+            mItems = items;
+            long totalSize = 0;
+            for (FileInfo item : items) {
+                totalSize += item.mSize;
+            }
+            mTotalSize = totalSize;
+            mProgressFormat = getString(R.string.misc_files_deleting_progress);
+
+            mDialog = new ProgressDialog(MiscFilesHandler.this);
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setTitle(R.string.misc_files_deleting);
+            mDialog.setMessage(String.format(mProgressFormat,
+                    Formatter.formatFileSize(MiscFilesHandler.this, 0), 0));
+            mDialog.setMax(PROGRESS_MAX);
+            mDialog.setProgressNumberFormat(null);
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            cancel(false);
+                        }
+                    });
+
+            // The list would be rebuilt from the measurement on a configuration change
+            mOldOrientation = getRequestedOrientation();
+            setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LOCKED);
+            mDialog.show();
+        }
+
+        void dismiss() {
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (FileInfo item : mItems) {
+                if (isCancelled()) {
+                    break;
+                }
+                if (StorageMeasurement.LOGV) {
+                    Log.i(TAG, "deleting: " + item);
+                }
+                if (deleteTree(new File(item.mFileName))) {
+                    mDeleted.add(item);
+                }
+                publishProgress(mBytesFreed, mItemsDeleted);
+            }
+            return null;
+        }
+
+        /**
+         * Deletes the given file, or directory and everything under it, without following
+         * symbolic links. Returns true if it is gone.
+         */
+        private boolean deleteTree(File root) {
+            boolean success = true;
+            // Directories whose children were already pushed are marked by a null after them
+            final ArrayList<File> stack = new ArrayList<File>();
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                if (isCancelled()) {
+                    return false;
+                }
+                final File file = stack.remove(stack.size() - 1);
+                if (file == null) {
+                    // All the children are handled, the directory should be empty by now
+                    success &= delete(stack.remove(stack.size() - 1), 0);
+                    continue;
+                }
+                final long size;
+                final boolean isDirectory;
+                try {
+                    final StructStat stat = Os.lstat(file.getPath());
+                    size = stat.st_blocks * 512;
+                    isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+                } catch (ErrnoException e) {
+                    // Already gone
+                    continue;
+                }
+                if (!isDirectory) {
+                    success &= delete(file, size);
+                    continue;
+                }
+                stack.add(file);
+                stack.add(null);
+                final String[] children = file.list();
+                if (children != null) {
+                    for (String child : children) {
+                        stack.add(new File(file, child));
+                    }
+                }
+            }
+            return success;
+        }
+
+        private boolean delete(File file, long size) {
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+                return false;
+            }
+            mBytesFreed += size;
+            mItemsDeleted++;
+            if (++mBatchCount == BATCH_SIZE) {
+                mBatchCount = 0;
+                publishProgress(mBytesFreed, mItemsDeleted);
+            }
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            final long bytesFreed = values[0];
+            if (mTotalSize > 0) {
+                mDialog.setProgress((int) Math.min(PROGRESS_MAX,
+                        bytesFreed * PROGRESS_MAX / mTotalSize));
+            }
+            mDialog.setMessage(String.format(mProgressFormat,
+                    Formatter.formatFileSize(MiscFilesHandler.this, bytesFreed),
+                    values[1]));
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            onDeleteFinished();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            onDeleteFinished();
+        }
+
+        private void onDeleteFinished() {
+            // Only the directories that were touched need to be measured again
+            final ArrayList<File> paths = new ArrayList<File>(mItems.size());
+            for (FileInfo item : mItems) {
+                paths.add(new File(item.mFileName));
+            }
+            if (mAdapter.mMeasurement != null) {
+                mAdapter.mMeasurement.invalidate(paths);
+            }
+
+            if (mDeleteTask != this) {
+                // The activity is gone
+                return;
+            }
+            mDeleteTask = null;
+            dismiss();
+            setRequestedOrientation(mOldOrientation);
+
+            mAdapter.removeAll(new ArrayList<Object>(mDeleted));
+            mAdapter.notifyDataSetChanged();
+            mModeCallback.mDataCount = mAdapter.getCount();
+        }
+    }
+
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
         private final Context mContext;
@@ -102,28 +302,17 @@ public class MiscFilesHandler extends ListActivity {
                     throw new IllegalStateException("checked item counts do not match. " +
                             "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
                 }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
+                if (mDataCount > 0 && mDeleteTask == null) {
+                    ArrayList<FileInfo> toDelete = new ArrayList<FileInfo>();
                     for (int i = 0; i < mDataCount; i++) {
                         if (!checkedItems.get(i)) {
                             //item not selected
                             continue;
                         }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
-                        }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
+                        toDelete.add(mAdapter.getItem(i));
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                    mDeleteTask = new DeleteTask(toDelete);
+                    mDeleteTask.execute();
                 }
                 mode.finish();
                 break;
@@ -140,23 +329,6 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            String[] children = dir.list();
-            if (children != null) {
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
             // This block intentionally left blank
         }
@@ -188,13 +360,13 @@ public class MiscFilesHandler extends ListActivity {
         private ArrayList<StorageMeasurement.FileInfo> mData = null;
         private long mDataSize = 0;
         private Context mContext;
+        final StorageMeasurement mMeasurement;
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
             final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
                     StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
-                    activity, storageVolume);
+            mMeasurement = StorageMeasurement.getInstance(activity, storageVolume);
             if (mMeasurement == null) return;
             mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
             if (mData != null) {
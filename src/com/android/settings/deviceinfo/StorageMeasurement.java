@@ -33,6 +33,8 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
@@ -50,6 +52,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,9 +83,15 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /** Directory trees measured at the same time, across all volumes. */
+    private static final int MEASURE_THREADS = 4;
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
+    @GuardedBy("sInstances")
+    private static ThreadPoolExecutor sMeasureExecutor;
+
     /**
      * Obtain shared instance of {@link StorageMeasurement} for given physical
      * {@link StorageVolume}, or internal storage if {@code null}.
@@ -95,7 +107,54 @@ public class StorageMeasurement {
         }
     }
 
+    private static ThreadPoolExecutor getMeasureExecutor() {
+        synchronized (sInstances) {
+            if (sMeasureExecutor == null) {
+                sMeasureExecutor = new ThreadPoolExecutor(MEASURE_THREADS, MEASURE_THREADS,
+                        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private int mCount;
+
+                            @Override
+                            public Thread newThread(final Runnable r) {
+                                return new Thread("MemoryMeasurement #" + (++mCount)) {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(
+                                                Process.THREAD_PRIORITY_BACKGROUND);
+                                        r.run();
+                                    }
+                                };
+                            }
+                        });
+                sMeasureExecutor.allowCoreThreadTimeOut(true);
+            }
+            return sMeasureExecutor;
+        }
+    }
+
+    /** {@link MeasurementDetails#mediaSize} is final. */
+    public static final int CATEGORY_MEDIA = 1 << 0;
+    /** {@link MeasurementDetails#miscSize} is final. */
+    public static final int CATEGORY_MISC = 1 << 1;
+    /** The external storage of every user is in {@link MeasurementDetails#usersSize}. */
+    public static final int CATEGORY_USERS = 1 << 2;
+    /** Apps and caches are final, and their data is in {@link MeasurementDetails#usersSize}. */
+    public static final int CATEGORY_APPS = 1 << 3;
+
+    static final int ALL_CATEGORIES = CATEGORY_MEDIA | CATEGORY_MISC | CATEGORY_USERS
+            | CATEGORY_APPS;
+
+    /**
+     * Sizes measured so far. The receiver is sent partial details as each category completes,
+     * and a last one once everything is measured.
+     */
     public static class MeasurementDetails {
+        /**
+         * The categories whose sizes are final, as {@code CATEGORY_*} flags.
+         */
+        public int measuredCategories;
+
         public long totalSize;
         public long availSize;
 
@@ -141,6 +200,27 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        public boolean isMeasured(int categories) {
+            return (measuredCategories & categories) == categories;
+        }
+
+        public boolean isComplete() {
+            return isMeasured(ALL_CATEGORIES);
+        }
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.measuredCategories = measuredCategories;
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize.putAll(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -158,10 +238,12 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    private final DirectorySizeCache mDirectoryCache = new DirectorySizeCache();
+
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    volatile List<FileInfo> mFileInfoForMisc;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
@@ -192,10 +274,32 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_DISCONNECT);
     }
 
+    /**
+     * Drops the last measurement, and the one in progress if any. Directories that did not
+     * change since are not listed again by the next measurement.
+     */
     public void invalidate() {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Like {@link #invalidate()} after the given files or trees changed: only they and their
+     * parent directories are listed again by the next measurement.
+     */
+    public void invalidate(List<File> paths) {
+        // Walking the cached listings is left to the measurement thread
+        mHandler.sendMessage(mHandler.obtainMessage(MeasurementHandler.MSG_INVALIDATE, paths));
+    }
+
+    /**
+     * Like {@link #invalidate()}, and also lists every directory again next time. Needed when
+     * files may have changed in place, which directory modification times do not reflect.
+     */
+    public void invalidateAll() {
+        mDirectoryCache.invalidateAll();
+        mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -239,6 +343,7 @@ public class StorageMeasurement {
                     addStatsLocked(stats);
                 }
                 if (--mRemaining == 0) {
+                    // Only the handler touches the details from now on
                     mFinished.sendToTarget();
                 }
             }
@@ -279,12 +384,58 @@ public class StorageMeasurement {
         }
     }
 
+    /**
+     * Measures one directory tree on the measurement executor, and reports back to the handler.
+     */
+    private class MeasureDirTask implements Runnable {
+        final int generation;
+        final int category;
+        final String mediaType;
+        final int userId;
+        final File path;
+        final IMediaContainerService imcs;
+
+        long size;
+
+        MeasureDirTask(int generation, int category, String mediaType, int userId, File path,
+                IMediaContainerService imcs) {
+            this.generation = generation;
+            this.category = category;
+            this.mediaType = mediaType;
+            this.userId = userId;
+            this.path = path;
+            this.imcs = imcs;
+        }
+
+        @Override
+        public void run() {
+            if (generation != mHandler.mGeneration) {
+                return;
+            }
+            // Files rewritten in place are not noticed until invalidateAll(), which is called
+            // when the media scanner finishes or the storage state changes
+            final ArrayList<File> unreadable = new ArrayList<File>();
+            size = mDirectoryCache.measure(path, unreadable);
+            for (File dir : unreadable) {
+                // Not readable from here, ask the container service
+                size += getDirectorySize(imcs, dir);
+            }
+            if (LOGV) {
+                Log.v(TAG, "measured " + path + ": " + size + ", " + unreadable.size()
+                        + " trees through the container service");
+            }
+            mHandler.obtainMessage(MeasurementHandler.MSG_DIR_MEASURED, generation, 0, this)
+                    .sendToTarget();
+        }
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
         public static final int MSG_CONNECTED = 2;
         public static final int MSG_DISCONNECT = 3;
-        public static final int MSG_COMPLETED = 4;
+        public static final int MSG_APPS_MEASURED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_DIR_MEASURED = 6;
 
         private Object mLock = new Object();
 
@@ -294,6 +445,15 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        // The measurement in progress, if any. Bumping the generation drops its results.
+        volatile int mGeneration;
+        private MeasurementDetails mDetails;
+        private int mRemainingMedia;
+        private int mRemainingMisc;
+        private int mRemainingUsers;
+        private ArrayList<FileInfo> mMiscInfo;
+        private long mStartTime;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -326,6 +486,11 @@ public class StorageMeasurement {
                         sendExactUpdate(mCached);
                         break;
                     }
+                    if (mDetails != null) {
+                        // Already measuring; the rest will follow
+                        sendExactUpdate(mDetails.copy());
+                        break;
+                    }
 
                     final Context context = (mContext != null) ? mContext.get() : null;
                     if (context == null) {
@@ -345,12 +510,17 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_CONNECTED: {
+                    if (mCached != null || mDetails != null) {
+                        break;
+                    }
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
                     measureExactStorage(imcs);
                     break;
                 }
                 case MSG_DISCONNECT: {
+                    // The directories measured through the service would come back empty
+                    abandonMeasurement();
                     synchronized (mLock) {
                         if (mBound) {
                             final Context context = (mContext != null) ? mContext.get() : null;
@@ -364,18 +534,94 @@ public class StorageMeasurement {
                     }
                     break;
                 }
-                case MSG_COMPLETED: {
-                    mCached = (MeasurementDetails) msg.obj;
-                    sendExactUpdate(mCached);
+                case MSG_APPS_MEASURED: {
+                    if (msg.arg1 != mGeneration || mDetails == null) {
+                        break;
+                    }
+                    final MeasurementDetails apps = (MeasurementDetails) msg.obj;
+                    mDetails.appsSize += apps.appsSize;
+                    mDetails.cacheSize += apps.cacheSize;
+                    for (int i = 0; i < apps.usersSize.size(); i++) {
+                        addValue(mDetails.usersSize, apps.usersSize.keyAt(i),
+                                apps.usersSize.valueAt(i));
+                    }
+                    categoryMeasured(CATEGORY_APPS);
+                    break;
+                }
+                case MSG_DIR_MEASURED: {
+                    if (msg.arg1 != mGeneration || mDetails == null) {
+                        break;
+                    }
+                    dirMeasured((MeasureDirTask) msg.obj);
                     break;
                 }
                 case MSG_INVALIDATE: {
+                    if (msg.obj != null) {
+                        @SuppressWarnings("unchecked")
+                        final List<File> paths = (List<File>) msg.obj;
+                        mDirectoryCache.invalidate(paths);
+                    }
                     mCached = null;
+                    abandonMeasurement();
                     break;
                 }
             }
         }
 
+        private void abandonMeasurement() {
+            mGeneration++;
+            mDetails = null;
+            mMiscInfo = null;
+        }
+
+        private void dirMeasured(MeasureDirTask task) {
+            switch (task.category) {
+                case CATEGORY_MEDIA:
+                    mDetails.mediaSize.put(task.mediaType, task.size);
+                    if (--mRemainingMedia == 0) {
+                        categoryMeasured(CATEGORY_MEDIA);
+                    }
+                    break;
+                case CATEGORY_MISC:
+                    mMiscInfo.add(new FileInfo(task.path.getAbsolutePath(), task.size,
+                            mMiscInfo.size()));
+                    mDetails.miscSize += task.size;
+                    if (--mRemainingMisc == 0) {
+                        miscMeasured();
+                    }
+                    break;
+                case CATEGORY_USERS:
+                    addValue(mDetails.usersSize, task.userId, task.size);
+                    if (--mRemainingUsers == 0) {
+                        categoryMeasured(CATEGORY_USERS);
+                    }
+                    break;
+            }
+        }
+
+        private void miscMeasured() {
+            // sort the list of FileInfo objects collected in descending order of their sizes
+            Collections.sort(mMiscInfo);
+            mFileInfoForMisc = mMiscInfo;
+            mMiscInfo = null;
+            categoryMeasured(CATEGORY_MISC);
+        }
+
+        private void categoryMeasured(int category) {
+            mDetails.measuredCategories |= category;
+            if (mDetails.isComplete()) {
+                if (LOGV) {
+                    Log.v(TAG, "measured " + (mIsInternal ? "internal" : mVolume.getPath())
+                            + " in " + (SystemClock.uptimeMillis() - mStartTime) + " ms");
+                }
+                mCached = mDetails;
+                mDetails = null;
+                sendExactUpdate(mCached);
+            } else {
+                sendExactUpdate(mDetails.copy());
+            }
+        }
+
         private void measureApproximateStorage(IMediaContainerService imcs) {
             final String path = mVolume != null ? mVolume.getPath()
                     : Environment.getDataDirectory().getPath();
@@ -396,8 +642,10 @@ public class StorageMeasurement {
                 return;
             }
 
+            final int generation = ++mGeneration;
             final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            mDetails = details;
+            mStartTime = SystemClock.uptimeMillis();
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
@@ -408,53 +656,102 @@ public class StorageMeasurement {
 
             final int currentUser = ActivityManager.getCurrentUser();
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
+            final ThreadPoolExecutor executor = getMeasureExecutor();
 
             // Measure media types for emulated storage, or for primary physical
             // external volume
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
+            final ArrayList<MeasureDirTask> tasks = new ArrayList<MeasureDirTask>();
             if (measureMedia) {
                 for (String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    tasks.add(new MeasureDirTask(generation, CATEGORY_MEDIA, type, 0, path, imcs));
                 }
             }
+            mRemainingMedia = tasks.size();
 
             // Measure misc files not counted under media
+            mMiscInfo = new ArrayList<FileInfo>();
+            mRemainingMisc = 0;
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                final File[] files = path.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (sMeasureMediaTypes.contains(file.getName())) {
+                            continue;
+                        }
+                        if (file.isFile()) {
+                            final long fileSize = file.length();
+                            mMiscInfo.add(new FileInfo(file.getAbsolutePath(), fileSize,
+                                    mMiscInfo.size()));
+                            details.miscSize += fileSize;
+                        } else if (file.isDirectory()) {
+                            tasks.add(new MeasureDirTask(generation, CATEGORY_MISC, null, 0, file,
+                                    imcs));
+                            mRemainingMisc++;
+                        } else {
+                            // Non directory, non file: not listed
+                        }
+                    }
+                }
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
             for (UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                tasks.add(new MeasureDirTask(generation, CATEGORY_USERS, null, user.id,
+                        userEnv.getExternalStorageDirectory(), imcs));
+            }
+            mRemainingUsers = users.size();
+
+            // Categories with nothing to measure are already final
+            if (mRemainingMedia == 0) {
+                details.measuredCategories |= CATEGORY_MEDIA;
+            }
+            if (mRemainingMisc == 0) {
+                Collections.sort(mMiscInfo);
+                mFileInfoForMisc = mMiscInfo;
+                details.measuredCategories |= CATEGORY_MISC;
+            }
+            if (mRemainingUsers == 0) {
+                details.measuredCategories |= CATEGORY_USERS;
+            }
+
+            for (MeasureDirTask task : tasks) {
+                executor.execute(task);
             }
 
             // Measure all apps for all users
             final PackageManager pm = context.getPackageManager();
+            List<ApplicationInfo> apps = null;
             if (mIsInternal || mIsPrimary) {
-                final List<ApplicationInfo> apps = pm.getInstalledApplications(
+                apps = pm.getInstalledApplications(
                         PackageManager.GET_UNINSTALLED_PACKAGES
                         | PackageManager.GET_DISABLED_COMPONENTS);
-
-                final int count = users.size() * apps.size();
+            }
+            final int count = apps != null ? users.size() * apps.size() : 0;
+            if (count > 0) {
+                final MeasurementDetails appDetails = new MeasurementDetails();
+                final Message finished = obtainMessage(MSG_APPS_MEASURED, generation, 0,
+                        appDetails);
                 final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+                        mIsInternal, appDetails, currentUser, finished, count);
 
                 for (UserInfo user : users) {
                     for (ApplicationInfo app : apps) {
                         pm.getPackageSizeInfo(app.packageName, user.id, observer);
                     }
                 }
-
             } else {
-                finished.sendToTarget();
+                details.measuredCategories |= CATEGORY_APPS;
+            }
+
+            if (details.isComplete()) {
+                categoryMeasured(0);
             }
         }
     }
@@ -470,42 +767,6 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
-
-        final File[] files = dir.listFiles();
-        if (files == null) return 0;
-
-        // Get sizes of all top level nodes except the ones already computed
-        long counter = 0;
-        long miscSize = 0;
-
-        for (File file : files) {
-            final String path = file.getAbsolutePath();
-            final String name = file.getName();
-            if (sMeasureMediaTypes.contains(name)) {
-                continue;
-            }
-
-            if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
-            } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
-            }
-        }
-
-        // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
-
-        return miscSize;
-    }
-
     static class FileInfo implements Comparable<FileInfo> {
         final String mFileName;
         final long mSize;
@@ -327,26 +327,39 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
 
         mUsageBarPreference.clear();
 
-        updatePreference(mItemApps, details.appsSize);
+        // Categories still being measured keep their "calculating" summary
+        if (details.isMeasured(StorageMeasurement.CATEGORY_APPS)) {
+            updatePreference(mItemApps, details.appsSize);
+        }
 
-        final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
-                Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
-        updatePreference(mItemDcim, dcimSize);
+        if (details.isMeasured(StorageMeasurement.CATEGORY_MEDIA)) {
+            final long dcimSize = totalValues(details.mediaSize, Environment.DIRECTORY_DCIM,
+                    Environment.DIRECTORY_MOVIES, Environment.DIRECTORY_PICTURES);
+            updatePreference(mItemDcim, dcimSize);
 
-        final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
-                Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
-                Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
-        updatePreference(mItemMusic, musicSize);
+            final long musicSize = totalValues(details.mediaSize, Environment.DIRECTORY_MUSIC,
+                    Environment.DIRECTORY_ALARMS, Environment.DIRECTORY_NOTIFICATIONS,
+                    Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS);
+            updatePreference(mItemMusic, musicSize);
 
-        final long downloadsSize = totalValues(details.mediaSize, Environment.DIRECTORY_DOWNLOADS);
-        updatePreference(mItemDownloads, downloadsSize);
+            final long downloadsSize = totalValues(details.mediaSize,
+                    Environment.DIRECTORY_DOWNLOADS);
+            updatePreference(mItemDownloads, downloadsSize);
+        }
 
-        updatePreference(mItemCache, details.cacheSize);
-        updatePreference(mItemMisc, details.miscSize);
+        if (details.isMeasured(StorageMeasurement.CATEGORY_APPS)) {
+            updatePreference(mItemCache, details.cacheSize);
+        }
+        if (details.isMeasured(StorageMeasurement.CATEGORY_MISC)) {
+            updatePreference(mItemMisc, details.miscSize);
+        }
 
-        for (StorageItemPreference userPref : mItemUsers) {
-            final long userSize = details.usersSize.get(userPref.userHandle);
-            updatePreference(userPref, userSize);
+        if (details.isMeasured(StorageMeasurement.CATEGORY_USERS
+                | StorageMeasurement.CATEGORY_APPS)) {
+            for (StorageItemPreference userPref : mItemUsers) {
+                final long userSize = details.usersSize.get(userPref.userHandle);
+                updatePreference(userPref, userSize);
+            }
         }
 
         mUsageBarPreference.commit();
@@ -367,6 +380,11 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         mMeasure.measure();
     }
 
+    private void measureAll() {
+        mMeasure.invalidateAll();
+        mMeasure.measure();
+    }
+
     public void onResume() {
         mMeasure.setReceiver(mReceiver);
         measure();
@@ -374,7 +392,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
 
     public void onStorageStateChanged() {
         init();
-        measure();
+        measureAll();
     }
 
     public void onUsbStateChanged(boolean isUsbConnected, String usbFunction) {
@@ -384,7 +402,7 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
     }
 
     public void onMediaScannerFinished() {
-        measure();
+        measureAll();
     }
 
     public void onCacheCleared() {
@@ -33,10 +33,14 @@ import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
+import com.android.settings.UidLabelCache;
 import com.android.settings.Utils;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -46,73 +50,112 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
+    // Upper bound on the labels and icons waiting to be loaded; the rest keep their quick name
+    private static final int MAX_PENDING_REQUESTS = 64;
 
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
+    private static final Object sRequestLock = new Object();
+    // Entries created since the last startRequestQueue()
+    private static final ArrayList<BatteryEntry> sNewRequests = new ArrayList<BatteryEntry>();
+    // Bumped by stopRequestQueue() so that requests already handed out are dropped
+    private static int sRequestGeneration;
+    private static int sOutstandingRequests;
+    private static int sRequestSeq;
+    private static ThreadPoolExecutor sRequestExecutor;
 
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
+    /**
+     * Loads the name and icon of one entry. Entries that drain more are loaded first.
+     */
+    private static final class LoadRequest implements Runnable, Comparable<LoadRequest> {
+        final BatteryEntry entry;
+        final int generation;
+        final int seq;
+
+        LoadRequest(BatteryEntry entry, int generation, int seq) {
+            this.entry = entry;
+            this.generation = generation;
+            this.seq = seq;
         }
 
-        public void abort() {
-            mAbort = true;
+        @Override
+        public int compareTo(LoadRequest other) {
+            final int result = Double.compare(other.entry.sipper.value, entry.sipper.value);
+            return result != 0 ? result : (seq < other.seq ? -1 : (seq == other.seq ? 0 : 1));
         }
 
         @Override
         public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
+            synchronized (sRequestLock) {
+                if (generation != sRequestGeneration) {
+                    return;
+                }
+            }
+            entry.loadNameAndIcon(generation);
+            synchronized (sRequestLock) {
+                if (generation == sRequestGeneration && --sOutstandingRequests == 0
+                        && sHandler != null) {
+                    sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
                 }
-                be.loadNameAndIcon();
             }
         }
     }
 
-    private static NameAndIconLoader mRequestThread;
+    private static ThreadPoolExecutor getRequestExecutorLocked() {
+        if (sRequestExecutor == null) {
+            sRequestExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "BatteryUsage Icon Loader");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            sRequestExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sRequestExecutor;
+    }
 
+    /**
+     * Starts loading the names and icons of the entries created since the last call.
+     */
     public static void startRequestQueue() {
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+        synchronized (sRequestLock) {
+            if (sHandler == null || sNewRequests.isEmpty()) {
+                sNewRequests.clear();
+                return;
+            }
+            final ThreadPoolExecutor executor = getRequestExecutorLocked();
+            final int count = sNewRequests.size();
+            for (int i = 0; i < count; i++) {
+                if (sOutstandingRequests >= MAX_PENDING_REQUESTS) {
+                    break;
                 }
+                sOutstandingRequests++;
+                executor.execute(new LoadRequest(sNewRequests.get(i), sRequestGeneration,
+                        sRequestSeq++));
             }
+            sNewRequests.clear();
         }
     }
 
+    /**
+     * Drops the requests that have not been loaded yet. The one being loaded, if any, is not
+     * reported.
+     */
     public static void stopRequestQueue() {
-        synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+        synchronized (sRequestLock) {
+            sRequestGeneration++;
+            sOutstandingRequests = 0;
+            sNewRequests.clear();
+            if (sRequestExecutor != null) {
+                sRequestExecutor.getQueue().clear();
             }
+            sHandler = null;
         }
     }
 
-    public static void clearUidCache() {
-        sUidCache.clear();
-    }
-
     public final Context context;
     public final BatterySipper sipper;
 
@@ -121,14 +164,10 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
-
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
-        sHandler = handler;
+        synchronized (sRequestLock) {
+            sHandler = handler;
+        }
         this.context = context;
         this.sipper = sipper;
         switch (sipper.drainType) {
@@ -209,12 +248,7 @@ public class BatteryEntry {
 
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        if (applyCachedNameIcon(uid)) {
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -233,23 +267,42 @@ public class BatteryEntry {
         } else {
             //name = packages[0];
         }
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
+        synchronized (sRequestLock) {
+            if (sHandler != null) {
+                sNewRequests.add(this);
             }
         }
     }
 
+    private boolean applyCachedNameIcon(int uid) {
+        final UidLabelCache.Entry cached = UidLabelCache.getInstance(context).get(uid);
+        if (cached == null) {
+            return false;
+        }
+        defaultPackageName = cached.packageName;
+        name = cached.label;
+        icon = cached.icon;
+        return true;
+    }
+
     /**
-     * Loads the app label and icon image and stores into the cache.
+     * Loads the app label and icon image and stores into the cache. The update is only
+     * reported if the request queue was not stopped since the given generation.
      */
-    public void loadNameAndIcon() {
+    void loadNameAndIcon(int generation) {
         // Bail out if the current sipper is not an App sipper.
         if (sipper.uidObj == null) {
             return;
         }
-        PackageManager pm = context.getPackageManager();
         final int uid = sipper.uidObj.getUid();
+        // Another entry may have loaded the same uid in the meantime
+        if (applyCachedNameIcon(uid)) {
+            sendNameIconUpdate(generation);
+            return;
+        }
+        final UidLabelCache labelCache = UidLabelCache.getInstance(context);
+        final int labelGeneration = labelCache.getGeneration();
+        PackageManager pm = context.getPackageManager();
         final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
         sipper.mPackages = pm.getPackagesForUid(uid);
         if (sipper.mPackages == null) {
@@ -320,14 +373,17 @@ public class BatteryEntry {
                 }
             }
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        labelCache.put(uid, new UidLabelCache.Entry(name, defaultPackageName, icon),
+                labelGeneration);
+        sendNameIconUpdate(generation);
+    }
+
+    private void sendNameIconUpdate(int generation) {
+        synchronized (sRequestLock) {
+            // The next screen sets its own handler; do not report this screen's entry to it
+            if (generation == sRequestGeneration && sHandler != null) {
+                sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+            }
         }
     }
 }
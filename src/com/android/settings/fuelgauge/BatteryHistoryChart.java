@@ -19,12 +19,12 @@ package com.android.settings.fuelgauge;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.TimeUtils;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -37,8 +37,6 @@ import android.graphics.Path;
 import android.graphics.Typeface;
 import android.os.BatteryStats;
 import android.os.SystemClock;
-import android.os.BatteryStats.HistoryItem;
-import android.telephony.ServiceState;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -151,10 +149,16 @@ public class BatteryHistoryChart extends View {
     final Path mWifiRunningPath = new Path();
     final Path mCpuRunningPath = new Path();
     final Path mDateLinePath = new Path();
+
+    // Levels of a column of the history model to plot, reused by layoutChart().
+    final int[] mLevelPoints = new int[4];
     
     BatteryStats mStats;
     Intent mBatteryBroadcast;
     long mStatsPeriod;
+    long mRemainingTimeUs;
+    BatteryHistoryModel mModel;
+    BuildModelTask mBuildModelTask;
     int mBatteryLevel;
     String mMaxPercentLabelString;
     String mMinPercentLabelString;
@@ -540,72 +544,76 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+        mRemainingTimeUs = remainingTimeUs;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
+        mHavePhoneSignal = !com.android.settings.Utils.isWifiOnly(getContext());
+
+        // Until the history is read, only the current level is shown.
+        mModel = null;
+        applyModel(null);
+        if (mBuildModelTask != null) {
+            mBuildModelTask.cancel(false);
+        }
+        mBuildModelTask = new BuildModelTask(stats);
+        mBuildModelTask.execute();
+    }
+
+    /**
+     * Reads the battery history off the UI thread.
+     */
+    private class BuildModelTask extends AsyncTask<Void, Void, BatteryHistoryModel> {
+        private final BatteryStats mTaskStats;
+
+        BuildModelTask(BatteryStats stats) {
+            mTaskStats = stats;
+        }
+
+        @Override
+        protected BatteryHistoryModel doInBackground(Void... params) {
+            final long start = SystemClock.uptimeMillis();
+            final BatteryHistoryModel model = BatteryHistoryModel.build(mTaskStats);
+            if (DEBUG) Log.d(TAG, "Read " + model.numHist + " history items into "
+                    + model.numColumns + " columns in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            return model;
+        }
+
+        @Override
+        protected void onPostExecute(BatteryHistoryModel model) {
+            if (mBuildModelTask != this || mStats != mTaskStats) {
+                return;
+            }
+            mBuildModelTask = null;
+            mModel = model;
+            applyModel(model);
+            if (mLastWidth > 0 && mLastHeight > 0) {
+                layoutChart(mLastWidth, mLastHeight);
+                invalidate();
             }
         }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
-        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
-            mHavePhoneSignal = true;
+    }
+
+    void applyModel(BatteryHistoryModel model) {
+        if (model != null) {
+            mHistStart = model.histStart;
+            mHistDataEnd = model.histDataEnd;
+            mStartWallTime = model.startWallTime;
+            mEndDataWallTime = model.getEndDataWallTime();
+            mNumHist = model.numHist;
+            mHaveGps = model.haveGps;
+            mHaveWifi = model.haveWifi;
+        } else {
+            mHistStart = 0;
+            mHistDataEnd = 0;
+            mStartWallTime = 0;
+            mEndDataWallTime = 0;
+            mNumHist = 0;
+            mHaveGps = false;
+            mHaveWifi = false;
         }
+        mHistEnd = mHistDataEnd + (mRemainingTimeUs/1000);
+        mEndWallTime = mEndDataWallTime + (mRemainingTimeUs/1000);
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
     }
 
@@ -661,6 +669,28 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Extends the bar of a state to the given column.  A state that was only on within the
+     * column is still drawn one pixel wide.
+     *
+     * @return whether the state is on at the end of the column.
+     */
+    private static boolean addStateBar(Path path, int x, int y, int states, int anyStates,
+            int flag, boolean lastOn) {
+        final boolean on = (states&flag) != 0;
+        if (on != lastOn) {
+            if (on) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        } else if (!on && (anyStates&flag) != 0) {
+            path.moveTo(x, y);
+            path.lineTo(x+1, y);
+        }
+        return on;
+    }
+
     private boolean is24Hour() {
         return DateFormat.is24HourFormat(getContext());
     }
@@ -711,6 +741,13 @@ public class BatteryHistoryChart extends View {
 
         mLastWidth = w;
         mLastHeight = h;
+        layoutChart(w, h);
+    }
+
+    /**
+     * Builds the paths and labels of the chart from the history model, in O(columns).
+     */
+    void layoutChart(int w, int h) {
         mBitmap = null;
         mCanvas = null;
 
@@ -786,8 +823,6 @@ public class BatteryHistoryChart extends View {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime > walltimeStart
                 ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
 
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
@@ -796,197 +831,100 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
-        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
-                    }
-                    if (false) {
-                        StringBuilder sb = new StringBuilder(128);
-                        sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
-                        sb.append(" wallchange=");
-                        TimeUtils.formatDuration(walltimeChange, sb);
-                        sb.append(" x=");
-                        sb.append(x);
-                        Log.d("foo", sb.toString());
-                    }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
-
-                    if (mLargeMode) {
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
-                        }
+        boolean lastWifiRunning = false, lastCpuRunning = false;
+        final BatteryHistoryModel model = mModel;
+        if (model != null && mEndDataWallTime > mStartWallTime) {
+            final int[] points = mLevelPoints;
+            for (int c=0; c<model.numColumns; c++) {
+                x = mLevelLeft + (int)((model.wallOffsets[c]*levelWidth)/walltimeChange);
+                if (x < 0) {
+                    x = 0;
+                }
 
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                // Plot the first level of the column, and keep its extremes and last level.
+                final int first = model.firstLevels[c];
+                final int last = model.lastLevels[c];
+                final int min = model.minLevels[c];
+                final int max = model.maxLevels[c];
+                int numPoints = 0;
+                points[numPoints++] = first;
+                if (min < first && min < last) points[numPoints++] = min;
+                if (max > first && max > last) points[numPoints++] = max;
+                if (last != first) points[numPoints++] = last;
+                for (int p=0; p<numPoints; p++) {
+                    final byte value = (byte)points[p];
+                    y = mLevelTop + levelh - ((value-batLow)*(levelh-1))/batChange;
+
+                    // The first point needs to have moved by at least a pixel, and
+                    // changes within a pixel are not plotted.
+                    if ((p > 0 || lastX != x) && lastY != y) {
+                        Path path;
+                        if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                        else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                        else path = null; //mBatGoodPath;
+
+                        if (path != lastLinePath) {
+                            if (lastLinePath != null) {
+                                lastLinePath.lineTo(x, y);
                             }
-                            lastScreenOn = screenOn;
-                        }
-
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
+                            if (path != null) {
+                                path.moveTo(x, y);
                             }
-                            lastGpsOn = gpsOn;
+                            lastLinePath = path;
+                        } else if (path != null) {
+                            path.lineTo(x, y);
                         }
 
-                        final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
-                                    >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
-                        boolean wifiRunning;
-                        if (lastWifiSupplState != wifiSupplState) {
-                            lastWifiSupplState = wifiSupplState;
-                            switch (wifiSupplState) {
-                                case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
-                                case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
-                                case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
-                                case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
-                                case BatteryStats.WIFI_SUPPL_STATE_INVALID:
-                                case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
-                                    wifiRunning = lastWifiSupplRunning = false;
-                                    break;
-                                default:
-                                    wifiRunning = lastWifiSupplRunning = true;
-                                    break;
-                            }
+                        if (curLevelPath == null) {
+                            curLevelPath = mBatLevelPath;
+                            curLevelPath.moveTo(x, y);
+                            startX = x;
                         } else {
-                            wifiRunning = lastWifiSupplRunning;
-                        }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                                |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                                |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
-                            wifiRunning = true;
-                        }
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
-
-                        final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
-                        if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
-                            lastCpuRunning = cpuRunning;
-                        }
-
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
+                            curLevelPath.lineTo(x, y);
                         }
+                        lastX = x;
+                        lastY = y;
                     }
+                }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
-                        } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
-                        }
-                        lastRealtime = rec.time;
+                if (mLargeMode) {
+                    final int states = model.endStates[c];
+                    final int anyStates = model.anyStates[c];
+                    lastCharging = addStateBar(mChargingPath, x, h-mChargingOffset,
+                            states, anyStates, BatteryHistoryModel.STATE_CHARGING, lastCharging);
+                    lastScreenOn = addStateBar(mScreenOnPath, x, h-mScreenOnOffset,
+                            states, anyStates, BatteryHistoryModel.STATE_SCREEN_ON, lastScreenOn);
+                    lastGpsOn = addStateBar(mGpsOnPath, x, h-mGpsOnOffset,
+                            states, anyStates, BatteryHistoryModel.STATE_GPS_ON, lastGpsOn);
+                    lastWifiRunning = addStateBar(mWifiRunningPath, x, h-mWifiRunningOffset,
+                            states, anyStates, BatteryHistoryModel.STATE_WIFI_RUNNING,
+                            lastWifiRunning);
+                    lastCpuRunning = addStateBar(mCpuRunningPath, x, h-mCpuRunningOffset,
+                            states, anyStates, BatteryHistoryModel.STATE_CPU_RUNNING,
+                            lastCpuRunning);
+                    if (mHavePhoneSignal) {
+                        mPhoneSignalChart.addTick(x,
+                                (states&BatteryHistoryModel.STATE_PHONE_SIGNAL_MASK)
+                                        >> BatteryHistoryModel.STATE_PHONE_SIGNAL_SHIFT);
                     }
+                }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
-                        }
+                if ((model.flags[c]&BatteryHistoryModel.FLAG_BREAK_AFTER) != 0) {
+                    if (curLevelPath != null) {
+                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                                lastCpuRunning, lastLinePath);
+                        lastX = lastY = -1;
+                        curLevelPath = null;
+                        lastLinePath = null;
+                        lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
+                        lastWifiRunning = false;
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.telephony.ServiceState;
+
+import java.util.Arrays;
+
+/**
+ * The battery history of a {@link BatteryStats}, read once into primitive arrays and
+ * downsampled into at most {@link #MAX_COLUMNS} columns of the time line.
+ *
+ * Reading the history is slow, so it is meant to be done on a background thread; the chart
+ * is then laid out from the columns, which costs O(columns) whatever the history length.
+ * Each column keeps the first, last, min and max battery levels and both the final and the
+ * accumulated states of the records it covers, so short events are not lost.
+ */
+final class BatteryHistoryModel {
+    // More columns than any chart is wide: a column never covers more than one pixel.
+    static final int MAX_COLUMNS = 2048;
+
+    // The states the chart draws, derived from the states of the history records.
+    static final int STATE_CHARGING = 1<<0;
+    static final int STATE_SCREEN_ON = 1<<1;
+    static final int STATE_GPS_ON = 1<<2;
+    static final int STATE_WIFI_RUNNING = 1<<3;
+    static final int STATE_CPU_RUNNING = 1<<4;
+    static final int STATE_PHONE_SIGNAL_SHIFT = 8;
+    static final int STATE_PHONE_SIGNAL_MASK = 0xff<<STATE_PHONE_SIGNAL_SHIFT;
+
+    // The line of the chart is broken after the column.
+    static final int FLAG_BREAK_AFTER = 1<<0;
+
+    long histStart;
+    long histDataEnd;
+    long startWallTime;
+    long lastWallTime;
+    long lastRealtime;
+    int numHist;
+    boolean haveGps;
+    boolean haveWifi;
+
+    // The records of the history, up to the last delta record.
+    private int mNumRecords;
+    private byte[] mCmds = new byte[256];
+    private long[] mTimes = new long[256];
+    private long[] mCurrentTimes = new long[256];
+    private byte[] mLevels = new byte[256];
+    private int[] mStates = new int[256];
+    private int[] mStates2 = new int[256];
+
+    int numColumns;
+    long[] wallOffsets;
+    byte[] firstLevels;
+    byte[] lastLevels;
+    byte[] minLevels;
+    byte[] maxLevels;
+    int[] endStates;
+    int[] anyStates;
+    int[] flags;
+
+    /**
+     * Reads and downsamples the history of the given stats.
+     */
+    static BatteryHistoryModel build(BatteryStats stats) {
+        final BatteryHistoryModel model = new BatteryHistoryModel();
+        synchronized (stats) {
+            model.readHistory(stats);
+        }
+        model.buildColumns();
+        return model;
+    }
+
+    long getEndDataWallTime() {
+        return lastWallTime + histDataEnd - lastRealtime;
+    }
+
+    private void readHistory(BatteryStats stats) {
+        int pos = 0;
+        int lastInteresting = 0;
+        int aggrStates = 0;
+        int aggrStates2 = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                pos++;
+                if (first) {
+                    first = false;
+                    histStart = rec.time;
+                }
+                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                            || rec.time < (histStart+(5*60*1000L))) {
+                        startWallTime = 0;
+                    }
+                    lastWallTime = rec.currentTime;
+                    lastRealtime = rec.time;
+                    if (startWallTime == 0) {
+                        startWallTime = lastWallTime - (lastRealtime-histStart);
+                    }
+                }
+                addRecord(rec);
+                if (rec.isDeltaData()) {
+                    lastInteresting = pos;
+                    histDataEnd = rec.time;
+                    aggrStates |= rec.states;
+                    aggrStates2 |= rec.states2;
+                }
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+        numHist = lastInteresting;
+        mNumRecords = lastInteresting;
+        haveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        haveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+    }
+
+    private void addRecord(HistoryItem rec) {
+        final int n = mNumRecords;
+        if (n == mCmds.length) {
+            final int size = n*2;
+            mCmds = Arrays.copyOf(mCmds, size);
+            mTimes = Arrays.copyOf(mTimes, size);
+            mCurrentTimes = Arrays.copyOf(mCurrentTimes, size);
+            mLevels = Arrays.copyOf(mLevels, size);
+            mStates = Arrays.copyOf(mStates, size);
+            mStates2 = Arrays.copyOf(mStates2, size);
+        }
+        mCmds[n] = rec.cmd;
+        mTimes[n] = rec.time;
+        mCurrentTimes[n] = rec.currentTime;
+        mLevels[n] = rec.batteryLevel;
+        mStates[n] = rec.states;
+        mStates2[n] = rec.states2;
+        mNumRecords = n+1;
+    }
+
+    private void buildColumns() {
+        final long endDataWallTime = getEndDataWallTime();
+        if (endDataWallTime <= startWallTime) {
+            numColumns = 0;
+            return;
+        }
+        final long span = endDataWallTime - startWallTime;
+        final int capacity = Math.min(mNumRecords, MAX_COLUMNS*2);
+        wallOffsets = new long[capacity];
+        firstLevels = new byte[capacity];
+        lastLevels = new byte[capacity];
+        minLevels = new byte[capacity];
+        maxLevels = new byte[capacity];
+        endStates = new int[capacity];
+        anyStates = new int[capacity];
+        flags = new int[capacity];
+
+        long curWalltime = startWallTime;
+        long curRealtime = 0;
+        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        boolean lastWifiSupplRunning = false;
+        int curIndex = -1;
+        boolean newColumn = true;
+        for (int i=0; i<mNumRecords; i++) {
+            final byte cmd = mCmds[i];
+            if (cmd == HistoryItem.CMD_UPDATE) {
+                curWalltime += mTimes[i]-curRealtime;
+                curRealtime = mTimes[i];
+                final long offset = curWalltime - startWallTime;
+                int index = (int)((offset*MAX_COLUMNS)/span);
+                if (index < 0) {
+                    index = 0;
+                } else if (index >= MAX_COLUMNS) {
+                    index = MAX_COLUMNS-1;
+                }
+
+                final int states = mStates[i];
+                final int states2 = mStates2[i];
+                int derived = 0;
+                if ((states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+                    derived |= STATE_CHARGING;
+                }
+                if ((states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+                    derived |= STATE_SCREEN_ON;
+                }
+                if ((states&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+                    derived |= STATE_GPS_ON;
+                }
+                if ((states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0) {
+                    derived |= STATE_CPU_RUNNING;
+                }
+
+                final int wifiSupplState =
+                    ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
+                boolean wifiRunning;
+                if (lastWifiSupplState != wifiSupplState) {
+                    lastWifiSupplState = wifiSupplState;
+                    switch (wifiSupplState) {
+                        case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
+                        case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
+                        case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
+                        case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
+                        case BatteryStats.WIFI_SUPPL_STATE_INVALID:
+                        case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
+                            wifiRunning = lastWifiSupplRunning = false;
+                            break;
+                        default:
+                            wifiRunning = lastWifiSupplRunning = true;
+                            break;
+                    }
+                } else {
+                    wifiRunning = lastWifiSupplRunning;
+                }
+                if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
+                    wifiRunning = true;
+                }
+                if (wifiRunning) {
+                    derived |= STATE_WIFI_RUNNING;
+                }
+
+                int bin;
+                if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
+                        >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                        == ServiceState.STATE_POWER_OFF) {
+                    bin = 0;
+                } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                    bin = 1;
+                } else {
+                    bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                            >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
+                    bin += 2;
+                }
+                derived |= bin<<STATE_PHONE_SIGNAL_SHIFT;
+
+                final byte level = mLevels[i];
+                if (newColumn || index != curIndex) {
+                    final int c = addColumn();
+                    wallOffsets[c] = offset;
+                    firstLevels[c] = lastLevels[c] = minLevels[c] = maxLevels[c] = level;
+                    endStates[c] = anyStates[c] = derived;
+                    curIndex = index;
+                    newColumn = false;
+                } else {
+                    final int c = numColumns-1;
+                    lastLevels[c] = level;
+                    if (level < minLevels[c]) minLevels[c] = level;
+                    if (level > maxLevels[c]) maxLevels[c] = level;
+                    endStates[c] = derived;
+                    anyStates[c] |= derived;
+                }
+            } else {
+                long lastWalltime = curWalltime;
+                if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                    if (mCurrentTimes[i] >= startWallTime) {
+                        curWalltime = mCurrentTimes[i];
+                    } else {
+                        curWalltime = startWallTime + (mTimes[i]-histStart);
+                    }
+                    curRealtime = mTimes[i];
+                }
+
+                if (cmd != HistoryItem.CMD_OVERFLOW
+                        && (cmd != HistoryItem.CMD_CURRENT_TIME
+                                || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
+                    if (numColumns > 0) {
+                        flags[numColumns-1] |= FLAG_BREAK_AFTER;
+                    }
+                    newColumn = true;
+                }
+            }
+        }
+
+        // The records are not needed anymore.
+        mCmds = null;
+        mTimes = null;
+        mCurrentTimes = null;
+        mLevels = null;
+        mStates = null;
+        mStates2 = null;
+    }
+
+    private int addColumn() {
+        final int c = numColumns;
+        if (c == wallOffsets.length) {
+            final int size = Math.max(16, c*2);
+            wallOffsets = Arrays.copyOf(wallOffsets, size);
+            firstLevels = Arrays.copyOf(firstLevels, size);
+            lastLevels = Arrays.copyOf(lastLevels, size);
+            minLevels = Arrays.copyOf(minLevels, size);
+            maxLevels = Arrays.copyOf(maxLevels, size);
+            endStates = Arrays.copyOf(endStates, size);
+            anyStates = Arrays.copyOf(anyStates, size);
+            flags = Arrays.copyOf(flags, size);
+        }
+        flags[c] = 0;
+        numColumns = c+1;
+        return c;
+    }
+}
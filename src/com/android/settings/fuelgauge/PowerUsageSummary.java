@@ -22,11 +22,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
@@ -45,6 +47,7 @@ import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -70,8 +73,6 @@ public class PowerUsageSummary extends PreferenceFragment {
 
     private BatteryHistoryPreference mHistPref;
     private PreferenceGroup mAppListGroup;
-    private String mBatteryLevel;
-    private String mBatteryStatus;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
@@ -80,7 +81,165 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
     private static final int SECONDS_IN_HOUR = 60 * 60;
 
+    // How long a computed result is shown again without recomputing it
+    private static final long STATS_CACHE_WINDOW = 30 * 1000;
+
+    // Battery state and the last computed result, shared by all instances of the screen.
+    // Only touched on the main thread.
+    private static String sBatteryLevel;
+    private static String sBatteryStatus;
+    private static int sBatteryChangedSeq;
+    private static StatsResult sCachedResult;
+
+    // The helper of the result being shown; null until the first result arrives
     private BatteryStatsHelper mStatsHelper;
+    private StatsResult mShownResult;
+    private LoadStatsTask mLoadTask;
+    private boolean mLoadPending;
+    private boolean mHistoryFileStored;
+
+    /**
+     * One row of the list, computed in the background.
+     */
+    private static final class StatsRow {
+        BatterySipper sipper;
+        double percentOfTotal;
+        double percentOfMax;
+        int order;
+    }
+
+    /**
+     * The aggregated stats for one stats type, as of one battery changed sequence.
+     */
+    private static final class StatsResult {
+        int statsType;
+        int batteryChangedSeq;
+        long loadedAt;
+        BatteryStatsHelper helper;
+        final ArrayList<StatsRow> rows = new ArrayList<StatsRow>();
+
+        boolean isValidFor(int statsType, int batteryChangedSeq, long now) {
+            return this.statsType == statsType && this.batteryChangedSeq == batteryChangedSeq
+                    && now - loadedAt < STATS_CACHE_WINDOW;
+        }
+    }
+
+    /**
+     * Loads the battery stats and filters the sippers to show, off the main thread.
+     */
+    private class LoadStatsTask extends AsyncTask<Void, Void, StatsResult> {
+        private final Context mContext;
+        private final UserManager mUserManager;
+        private final int mType;
+        private final int mSeq;
+
+        LoadStatsTask(Context context, int statsType, int batteryChangedSeq) {
+            mContext = context.getApplicationContext();
+            mUserManager = mUm;
+            mType = statsType;
+            mSeq = batteryChangedSeq;
+        }
+
+        @Override
+        protected StatsResult doInBackground(Void... params) {
+            final BatteryStatsHelper helper = new BatteryStatsHelper(mContext, true);
+            helper.create((Bundle) null);
+            final StatsResult result = new StatsResult();
+            result.statsType = mType;
+            result.batteryChangedSeq = mSeq;
+            result.helper = helper;
+
+            // Loads the stats from the service
+            final BatteryStats stats = helper.getStats();
+            final PowerProfile powerProfile = helper.getPowerProfile();
+            final double averagePower =
+                    powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
+            if (averagePower < MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP || isCancelled()) {
+                result.loadedAt = SystemClock.elapsedRealtime();
+                return result;
+            }
+
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED,
+                    mUserManager.getUserProfiles());
+
+            final List<BatterySipper> usageList = helper.getUsageList();
+            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mType) : 0;
+            final int numSippers = usageList.size();
+            for (int i = 0; i < numSippers; i++) {
+                final BatterySipper sipper = usageList.get(i);
+                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                    continue;
+                }
+                final double percentOfTotal =
+                        ((sipper.value / helper.getTotalPower()) * dischargeAmount);
+                if (((int) (percentOfTotal + .5)) < 1) {
+                    continue;
+                }
+                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                    // Don't show over-counted unless it is at least 2/3 the size of
+                    // the largest real entry, and its percent of total is more significant
+                    if (sipper.value < ((helper.getMaxRealPower()*2)/3)) {
+                        continue;
+                    }
+                    if (percentOfTotal < 10) {
+                        continue;
+                    }
+                    if ("user".equals(Build.TYPE)) {
+                        continue;
+                    }
+                }
+                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                    // Don't show over-counted unless it is at least 1/2 the size of
+                    // the largest real entry, and its percent of total is more significant
+                    if (sipper.value < (helper.getMaxRealPower()/2)) {
+                        continue;
+                    }
+                    if (percentOfTotal < 5) {
+                        continue;
+                    }
+                    if ("user".equals(Build.TYPE)) {
+                        continue;
+                    }
+                }
+                sipper.percent = percentOfTotal;
+                final StatsRow row = new StatsRow();
+                row.sipper = sipper;
+                row.percentOfTotal = percentOfTotal;
+                row.percentOfMax = (sipper.value * 100) / helper.getMaxPower();
+                row.order = i + 1;
+                result.rows.add(row);
+                if (result.rows.size() > MAX_ITEMS_TO_LIST) {
+                    break;
+                }
+            }
+            result.loadedAt = SystemClock.elapsedRealtime();
+            return result;
+        }
+
+        @Override
+        protected void onPostExecute(StatsResult result) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            sCachedResult = result;
+            showResult(result);
+            if (mLoadPending) {
+                mLoadPending = false;
+                refreshStats(false);
+            }
+        }
+
+        @Override
+        protected void onCancelled(StatsResult result) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            // Still good for the next time the screen is shown
+            if (result != null) {
+                sCachedResult = result;
+            }
+        }
+    }
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -100,40 +259,43 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
-        mStatsHelper = new BatteryStatsHelper(activity, true);
     }
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        mStatsHelper.create(icicle);
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         setHasOptionsMenu(true);
     }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
-    }
-
     @Override
     public void onResume() {
         super.onResume();
-        BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
+        if (mHistoryFileStored) {
+            mHistoryFileStored = false;
+            final Context context = getActivity().getApplicationContext();
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BatteryStatsHelper.dropFile(context, BATTERY_HISTORY_FILE);
+                }
+            });
+        }
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
-        if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
-            mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
-        }
-        refreshStats();
+        mHandler.removeMessages(MSG_REFRESH_STATS);
+        refreshStats(false);
     }
 
     @Override
     public void onPause() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mLoadPending = false;
         BatteryEntry.stopRequestQueue();
         mHandler.removeMessages(BatteryEntry.MSG_UPDATE_NAME_ICON);
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
@@ -146,19 +308,11 @@ public class PowerUsageSummary extends PreferenceFragment {
         mHandler.removeMessages(MSG_REFRESH_STATS);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
-            BatteryEntry.clearUidCache();
-        }
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
             mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            mHistoryFileStored = true;
             Bundle args = new Bundle();
             args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
             args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
@@ -210,11 +364,10 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                refreshStats(false);
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                refreshStats(true);
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
             case MENU_BATTERY_SAVER:
@@ -234,102 +387,87 @@ public class PowerUsageSummary extends PreferenceFragment {
         mAppListGroup.addPreference(notAvailable);
     }
 
+    /**
+     * Returns true if the level or status changed, in which case cached results are stale.
+     */
     private boolean updateBatteryStatus(Intent intent) {
         if (intent != null) {
             String batteryLevel = com.android.settings.Utils.getBatteryPercentage(intent);
             String batteryStatus = com.android.settings.Utils.getBatteryStatus(getResources(),
                     intent);
-            if (!batteryLevel.equals(mBatteryLevel) || !batteryStatus.equals(mBatteryStatus)) {
-                mBatteryLevel = batteryLevel;
-                mBatteryStatus = batteryStatus;
+            if (!batteryLevel.equals(sBatteryLevel) || !batteryStatus.equals(sBatteryStatus)) {
+                sBatteryLevel = batteryLevel;
+                sBatteryStatus = batteryStatus;
+                sBatteryChangedSeq++;
                 return true;
             }
         }
         return false;
     }
 
-    private void refreshStats() {
+    /**
+     * Shows the stats, from the cache if they are recent enough and the battery did not change
+     * since, otherwise from a new background load. While a load is running further requests
+     * are collapsed into a single reload once it is done.
+     */
+    private void refreshStats(boolean force) {
+        if (!force) {
+            final StatsResult cached = sCachedResult;
+            if (cached != null && cached.isValidFor(mStatsType, sBatteryChangedSeq,
+                    SystemClock.elapsedRealtime())) {
+                if (cached != mShownResult) {
+                    showResult(cached);
+                }
+                return;
+            }
+            if (mLoadTask != null) {
+                mLoadPending = true;
+                return;
+            }
+        } else if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadPending = false;
+        mLoadTask = new LoadStatsTask(getActivity(), mStatsType, sBatteryChangedSeq);
+        mLoadTask.execute();
+    }
+
+    private void showResult(StatsResult result) {
+        if (getActivity() == null) {
+            return;
+        }
+        mShownResult = result;
+        mStatsHelper = result.helper;
+
         mAppListGroup.removeAll();
         mAppListGroup.setOrderingAsAdded(false);
         mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
                 mStatsHelper.getBatteryBroadcast());
         mHistPref.setOrder(-1);
         mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
-
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
 
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
-                    continue;
-                }
-                final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
-                if (((int) (percentOfTotal + .5)) < 1) {
-                    continue;
-                }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
-                }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show over-counted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
-                }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
-                }
+        final int numRows = result.rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final StatsRow row = result.rows.get(i);
+            final BatterySipper sipper = row.sipper;
+            final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
+            final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+            final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
+                    userHandle);
+            final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
+                    userHandle);
+            final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
+                    badgedIcon, contentDescription, entry);
+
+            pref.setTitle(entry.getLabel());
+            pref.setOrder(row.order);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            if (sipper.uidObj != null) {
+                pref.setKey(Integer.toString(sipper.uidObj.getUid()));
             }
+            mAppListGroup.addPreference(pref);
         }
-        if (!addedSome) {
+        if (numRows == 0) {
             addNotAvailableMessage();
         }
 
@@ -362,8 +500,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
-                    refreshStats();
+                    refreshStats(false);
             }
             super.handleMessage(msg);
         }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rows of the data usage app list, collapsed from a {@link NetworkStats} summary and
+ * sorted, ready to be shown.
+ */
+public class AppUsageList {
+    public static final AppUsageList EMPTY =
+            new AppUsageList(Collections.<AppItem>emptyList(), 0);
+
+    /** Unmodifiable, in the order they are shown. */
+    public final List<AppItem> items;
+    /** Largest total of the items, which the usage bars are relative to. */
+    public final long largest;
+
+    private AppUsageList(List<AppItem> items, long largest) {
+        this.items = items;
+        this.largest = largest;
+    }
+
+    /**
+     * Returns the ids of the given profiles as a set of bits.
+     */
+    public static BitSet buildProfiles(List<UserHandle> profiles) {
+        final BitSet bits = new BitSet();
+        for (UserHandle profile : profiles) {
+            bits.set(profile.getIdentifier());
+        }
+        return bits;
+    }
+
+    /**
+     * Collapses the stats into app and user items.
+     *
+     * Apps of the current user and its profiles get their own items, and those of the profiles
+     * also count towards an item for their profile. Apps of other users only count towards
+     * their user, and system uids towards the system. The restricted uids of the current user
+     * and its profiles are marked, and get an item even without usage.
+     *
+     * @param stats the usage of each uid, or {@code null} if it could not be read
+     * @param currentUserId the current user
+     * @param profiles ids of the current user and its profiles, see {@link #buildProfiles}
+     * @param restrictedUids uids restricted from using background data
+     */
+    public static AppUsageList build(NetworkStats stats, int currentUserId, BitSet profiles,
+            int[] restrictedUids) {
+        // Sum the rows of each uid first: there is one per interface and set
+        final int size = stats != null ? stats.size() : 0;
+        final int[] uids = new int[size];
+        final long[] totals = new long[size];
+        final SparseIntArray uidIndexes = new SparseIntArray();
+        int uidCount = 0;
+
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            int index = uidIndexes.get(entry.uid, -1);
+            if (index < 0) {
+                index = uidCount++;
+                uids[index] = entry.uid;
+                uidIndexes.put(entry.uid, index);
+            }
+            totals[index] += entry.rxBytes + entry.txBytes;
+        }
+
+        // Decide how to collapse uids together
+        final ArrayList<AppItem> items = new ArrayList<AppItem>();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+        for (int i = 0; i < uidCount; i++) {
+            final int uid = uids[i];
+            final long total = totals[i];
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (isProfile(profiles, userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(items, knownItems, managedKey, AppItem.CATEGORY_USER, uid,
+                                total);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(items, knownItems, collapseKey, category, uid, total);
+        }
+
+        final int restrictedUidsMax = restrictedUids != null ? restrictedUids.length : 0;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!isProfile(profiles, UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        long largest = 0;
+        final int count = items.size();
+        for (int i = 0; i < count; i++) {
+            largest = Math.max(largest, items.get(i).total);
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        Collections.sort(items);
+        return new AppUsageList(Collections.unmodifiableList(items), largest);
+    }
+
+    private static boolean isProfile(BitSet profiles, int userId) {
+        return userId >= 0 && profiles.get(userId);
+    }
+
+    /**
+     * Adds the usage of a uid to the item mapped by the collapse key, creating it if needed.
+     */
+    private static void accumulate(ArrayList<AppItem> items, SparseArray<AppItem> knownItems,
+            int collapseKey, int category, int uid, long total) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = category;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += total;
+    }
+}
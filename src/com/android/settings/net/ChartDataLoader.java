@@ -18,14 +18,12 @@ package com.android.settings.net;
 
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
-import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.net.INetworkStatsSession;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
@@ -41,7 +39,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
-    private final INetworkStatsSession mSession;
+    private final NetworkStatsRepository mRepository;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -56,9 +54,9 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
-    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public ChartDataLoader(Context context, NetworkStatsRepository repository, Bundle args) {
         super(context);
-        mSession = session;
+        mRepository = repository;
         mArgs = args;
     }
 
@@ -86,7 +84,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = mRepository.getHistoryForNetwork(template, fields);
 
         if (app != null) {
             // load stats for current uid and template
@@ -127,19 +125,19 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     /**
      * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * an existing {@link NetworkStatsHistory} if provided. Histories from the
+     * repository are shared, so they are copied rather than combined into.
      */
     private NetworkStatsHistory collectHistoryForUid(
             NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final NetworkStatsHistory history = mRepository.getHistoryForUid(
+                template, uid, set, FIELD_RX_BYTES | FIELD_TX_BYTES);
+
+        if (existing == null) {
+            existing = new NetworkStatsHistory(history.getBucketDuration());
         }
+        existing.recordEntireHistory(history);
+        return existing;
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Caches what the data usage screens read from an {@link INetworkStatsSession}, so that
+ * switching tabs, cycles or apps back and forth is served from memory instead of binder.
+ *
+ * Histories are kept per template, uid, set and fields, and cover all time: any range of them
+ * is read with {@link NetworkStatsHistory#getValues}. Summaries of all uids are kept per
+ * template and range. Everything is dropped by {@link #invalidate}, which should follow each
+ * {@code forceUpdate()} of the stats service.
+ *
+ * Returned objects are shared with later callers and must not be modified. Safe for use by
+ * several threads at once.
+ */
+public class NetworkStatsRepository {
+    private static final String TAG = "NetworkStatsRepository";
+    private static final boolean LOGD = false;
+
+    private static final int MAX_HISTORIES = 64;
+    private static final int MAX_SUMMARIES = 8;
+
+    private static final class HistoryKey {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        HistoryKey(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof HistoryKey)) {
+                return false;
+            }
+            final HistoryKey other = (HistoryKey) o;
+            return uid == other.uid && set == other.set && fields == other.fields
+                    && template.equals(other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = template.hashCode();
+            result = 31 * result + uid;
+            result = 31 * result + set;
+            return 31 * result + fields;
+        }
+    }
+
+    private static final class SummaryKey {
+        final NetworkTemplate template;
+        final long start;
+        final long end;
+
+        SummaryKey(NetworkTemplate template, long start, long end) {
+            this.template = template;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SummaryKey)) {
+                return false;
+            }
+            final SummaryKey other = (SummaryKey) o;
+            return start == other.start && end == other.end
+                    && template.equals(other.template);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = template.hashCode();
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            return 31 * result + (int) (end ^ (end >>> 32));
+        }
+    }
+
+    private final INetworkStatsSession mSession;
+
+    private final LruCache<HistoryKey, NetworkStatsHistory> mHistories =
+            new LruCache<HistoryKey, NetworkStatsHistory>(MAX_HISTORIES);
+    private final LruCache<SummaryKey, NetworkStats> mSummaries =
+            new LruCache<SummaryKey, NetworkStats>(MAX_SUMMARIES);
+
+    // Bumped by invalidate(), so that loads started before it are not cached
+    private final Object mLock = new Object();
+    private int mGeneration;
+    private int mHits;
+    private int mMisses;
+
+    public NetworkStatsRepository(INetworkStatsSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Returns the history of the whole network, see
+     * {@link INetworkStatsSession#getHistoryForNetwork}.
+     */
+    public NetworkStatsHistory getHistoryForNetwork(NetworkTemplate template, int fields)
+            throws RemoteException {
+        return getHistory(new HistoryKey(template, UID_ALL, 0, fields));
+    }
+
+    /**
+     * Returns the untagged history of the uid in the given set, see
+     * {@link INetworkStatsSession#getHistoryForUid}.
+     */
+    public NetworkStatsHistory getHistoryForUid(NetworkTemplate template, int uid, int set,
+            int fields) throws RemoteException {
+        return getHistory(new HistoryKey(template, uid, set, fields));
+    }
+
+    /**
+     * Returns the usage of every uid over the range, see
+     * {@link INetworkStatsSession#getSummaryForAllUid}. Tags are not included.
+     */
+    public NetworkStats getSummaryForAllUid(NetworkTemplate template, long start, long end)
+            throws RemoteException {
+        final SummaryKey key = new SummaryKey(template, start, end);
+        NetworkStats summary = mSummaries.get(key);
+        if (summary != null) {
+            countLookup(true);
+            return summary;
+        }
+        countLookup(false);
+
+        final int generation = getGeneration();
+        summary = mSession.getSummaryForAllUid(template, start, end, false);
+        synchronized (mLock) {
+            if (generation == mGeneration && summary != null) {
+                mSummaries.put(key, summary);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Returns the total bytes of the network over the range, sliced from its cached history.
+     */
+    public long getTotalBytesForNetwork(NetworkTemplate template, long start, long end)
+            throws RemoteException {
+        final NetworkStatsHistory history = getHistoryForNetwork(template,
+                NetworkStatsHistory.FIELD_RX_BYTES | NetworkStatsHistory.FIELD_TX_BYTES);
+        final NetworkStatsHistory.Entry entry = history.getValues(start, end, null);
+        return entry.rxBytes + entry.txBytes;
+    }
+
+    /**
+     * Drops everything; the next reads go to the stats session.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mHistories.evictAll();
+            mSummaries.evictAll();
+        }
+        if (LOGD) Log.d(TAG, "invalidated");
+    }
+
+    private NetworkStatsHistory getHistory(HistoryKey key) throws RemoteException {
+        NetworkStatsHistory history = mHistories.get(key);
+        if (history != null) {
+            countLookup(true);
+            return history;
+        }
+        countLookup(false);
+
+        final int generation = getGeneration();
+        if (key.uid == UID_ALL) {
+            history = mSession.getHistoryForNetwork(key.template, key.fields);
+        } else {
+            history = mSession.getHistoryForUid(key.template, key.uid, key.set, TAG_NONE,
+                    key.fields);
+        }
+        synchronized (mLock) {
+            if (generation == mGeneration && history != null) {
+                mHistories.put(key, history);
+            }
+        }
+        return history;
+    }
+
+    private int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    private void countLookup(boolean hit) {
+        synchronized (mLock) {
+            if (hit) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            if (LOGD) Log.d(TAG, "hits=" + mHits + " misses=" + mMisses);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "NetworkStatsRepository{hits=" + mHits + " misses=" + mMisses
+                    + " histories=" + mHistories.size() + " summaries=" + mSummaries.size()
+                    + "}";
+        }
+    }
+}
@@ -16,20 +16,27 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
-import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserManager;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader for the usage of all uids over a range, collapsed into the rows of the app list.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageList> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
-    private final INetworkStatsSession mSession;
+    private final NetworkStatsRepository mRepository;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -40,9 +47,10 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
-    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public SummaryForAllUidLoader(Context context, NetworkStatsRepository repository,
+            Bundle args) {
         super(context);
-        mSession = session;
+        mRepository = repository;
         mArgs = args;
     }
 
@@ -53,16 +61,24 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageList loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mRepository.getSummaryForAllUid(template, start, end);
         } catch (RemoteException e) {
-            return null;
+            stats = null;
         }
+
+        final Context context = getContext();
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        final int[] restrictedUids = NetworkPolicyManager.from(context).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return AppUsageList.build(stats, ActivityManager.getCurrentUser(),
+                AppUsageList.buildProfiles(um.getUserProfiles()), restrictedUids);
     }
 
     @Override
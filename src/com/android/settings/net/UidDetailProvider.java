@@ -25,27 +25,170 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.UserManager;
 import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import com.android.settings.R;
+import com.android.settings.UidLabelCache;
 import com.android.settings.Utils;
 
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * Details are resolved on a background pool, where uids that are shown go
+ * ahead of prefetched ones, and kept in an LRU cache bounded by the bytes of
+ * their icons. The details of a uid are dropped along with its entry in the
+ * shared {@link UidLabelCache}, that is when one of its packages is added,
+ * changed or removed.
  */
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
+    private static final boolean LOGD = false;
+
+    /** Bytes of icons the cache holds at most. */
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+    /** Rough size of a detail apart from its icon. */
+    private static final int DETAIL_BYTES = 256;
+
+    private static final int RESOLVE_THREADS = 2;
+
+    private static final ThreadPoolExecutor sResolveExecutor = new ThreadPoolExecutor(
+            RESOLVE_THREADS, RESOLVE_THREADS, 10, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "UidDetailProvider");
+                }
+            });
+
+    static {
+        sResolveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives details resolved in the background, on the main thread.
+     */
+    public interface Callback {
+        public void onUidDetailLoaded(int uid, UidDetail detail);
+    }
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+
+    // Callbacks waiting for each uid being resolved, only touched on the main thread; a uid
+    // that is only prefetched has an empty list
+    private final SparseArray<ArrayList<Callback>> mPending =
+            new SparseArray<ArrayList<Callback>>();
+    private volatile boolean mReleased;
+
+    // Bumped on each invalidation, so that details resolved before it are not cached
+    private final Object mLock = new Object();
+    private int mGeneration;
+    private int mSequence;
+    private int mHits;
+    private int mMisses;
+    private int mPrefetches;
+
+    private final UidLabelCache.InvalidationListener mInvalidationListener =
+            new UidLabelCache.InvalidationListener() {
+        @Override
+        public void onUidInvalidated(int uid) {
+            invalidate(uid);
+        }
+
+        @Override
+        public void onAllInvalidated() {
+            clearCache();
+        }
+    };
+
+    /**
+     * Resolves one uid on {@link #sResolveExecutor}. Shown uids go first,
+     * then in the order they were asked for.
+     */
+    private final class ResolveRequest implements Runnable, Comparable<ResolveRequest> {
+        final int uid;
+        final boolean prefetch;
+        final int generation;
+        final int sequence;
+
+        ResolveRequest(int uid, boolean prefetch, int generation, int sequence) {
+            this.uid = uid;
+            this.prefetch = prefetch;
+            this.generation = generation;
+            this.sequence = sequence;
+        }
+
+        UidDetailProvider getProvider() {
+            return UidDetailProvider.this;
+        }
+
+        @Override
+        public void run() {
+            if (mReleased) {
+                return;
+            }
+            // a request for the same uid may have resolved it meanwhile
+            UidDetail detail = mUidDetailCache.get(uid);
+            if (detail == null) {
+                detail = buildUidDetail(uid);
+                synchronized (mLock) {
+                    if (generation == mGeneration) {
+                        mUidDetailCache.put(uid, detail);
+                    } else {
+                        // its packages may have changed while resolving it
+                        detail = null;
+                    }
+                }
+            }
+
+            final UidDetail result = detail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (result != null) {
+                        deliver(uid, result);
+                    } else {
+                        resubmit(uid);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(ResolveRequest another) {
+            if (prefetch != another.prefetch) {
+                return prefetch ? 1 : -1;
+            }
+            return Integer.compare(sequence, another.sequence);
+        }
+    }
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,24 +206,68 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = new LruCache<Integer, UidDetail>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer uid, UidDetail detail) {
+                return DETAIL_BYTES + getIconBytes(detail.icon);
+            }
+        };
+        UidLabelCache.getInstance(mContext).addInvalidationListener(mInvalidationListener);
+    }
+
+    private static int getIconBytes(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            return ((BitmapDrawable) icon).getBitmap().getByteCount();
+        } else if (icon != null) {
+            return Math.max(icon.getIntrinsicWidth(), 0) * Math.max(icon.getIntrinsicHeight(), 0)
+                    * 4;
+        } else {
+            return 0;
+        }
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+        synchronized (mLock) {
+            mGeneration++;
+            mUidDetailCache.evictAll();
         }
     }
 
     /**
-     * Resolve best descriptive label for the given UID.
+     * Drop the details of the given uid, so they are resolved again.
      */
-    public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
+    public void invalidate(int uid) {
+        if (LOGD) Log.d(TAG, "invalidating details of uid " + uid);
+        synchronized (mLock) {
+            mGeneration++;
+            mUidDetailCache.remove(uid);
+        }
+    }
 
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
+    /**
+     * Stop listening for package changes and drop everything, including the
+     * requests still queued. Callbacks still waiting are not called.
+     */
+    public void release() {
+        if (LOGD) Log.d(TAG, "releasing " + this);
+        mReleased = true;
+        UidLabelCache.getInstance(mContext).removeInvalidationListener(mInvalidationListener);
+        for (Runnable request : sResolveExecutor.getQueue()) {
+            if (request instanceof ResolveRequest
+                    && ((ResolveRequest) request).getProvider() == this) {
+                sResolveExecutor.remove(request);
+            }
         }
+        mPending.clear();
+        clearCache();
+    }
+
+    /**
+     * Resolve best descriptive label for the given UID.
+     */
+    public UidDetail getUidDetail(int uid, boolean blocking) {
+        UidDetail detail = mUidDetailCache.get(uid);
+        countLookup(detail != null);
 
         if (detail != null) {
             return detail;
@@ -88,15 +275,119 @@ public class UidDetailProvider {
             return null;
         }
 
+        final int generation = getGeneration();
         detail = buildUidDetail(uid);
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                mUidDetailCache.put(uid, detail);
+            }
         }
 
         return detail;
     }
 
+    /**
+     * Return the cached details of the given UID, or {@code null} after
+     * starting to resolve them in the background, in which case the callback
+     * is called with them on the main thread. Must be called on the main
+     * thread.
+     */
+    public UidDetail getUidDetail(int uid, Callback callback) {
+        final UidDetail detail = mUidDetailCache.get(uid);
+        countLookup(detail != null);
+        if (detail != null) {
+            return detail;
+        }
+
+        ArrayList<Callback> callbacks = mPending.get(uid);
+        if (callbacks == null) {
+            callbacks = new ArrayList<Callback>(1);
+            mPending.put(uid, callbacks);
+            submit(uid, false);
+        } else if (callbacks.isEmpty()) {
+            // only prefetched so far; it is shown now, so ask again ahead of other prefetches
+            submit(uid, false);
+        }
+        if (!callbacks.contains(callback)) {
+            callbacks.add(callback);
+        }
+        return null;
+    }
+
+    /**
+     * Start resolving the details of the given UID in the background, behind
+     * the ones that are shown, if they are not cached or being resolved
+     * already. Must be called on the main thread.
+     */
+    public void prefetchUidDetail(int uid) {
+        if (mPending.get(uid) != null || mUidDetailCache.get(uid) != null) {
+            return;
+        }
+        mPending.put(uid, new ArrayList<Callback>(1));
+        synchronized (mLock) {
+            mPrefetches++;
+        }
+        submit(uid, true);
+    }
+
+    private void submit(int uid, boolean prefetch) {
+        final ResolveRequest request;
+        synchronized (mLock) {
+            request = new ResolveRequest(uid, prefetch, mGeneration, mSequence++);
+        }
+        sResolveExecutor.execute(request);
+    }
+
+    /**
+     * Resolve again a uid invalidated while it was being resolved, if it is
+     * still waited for.
+     */
+    private void resubmit(int uid) {
+        final ArrayList<Callback> callbacks = mPending.get(uid);
+        if (mReleased || callbacks == null) {
+            return;
+        }
+        submit(uid, callbacks.isEmpty());
+    }
+
+    private void deliver(int uid, UidDetail detail) {
+        final ArrayList<Callback> callbacks = mPending.get(uid);
+        if (mReleased || callbacks == null) {
+            return;
+        }
+        mPending.remove(uid);
+        final int count = callbacks.size();
+        for (int i = 0; i < count; i++) {
+            callbacks.get(i).onUidDetailLoaded(uid, detail);
+        }
+    }
+
+    private int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    private void countLookup(boolean hit) {
+        synchronized (mLock) {
+            if (hit) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "UidDetailProvider{hits=" + mHits + " misses=" + mMisses + " prefetches="
+                    + mPrefetches + " cached=" + mUidDetailCache.size() + "/" + MAX_CACHE_BYTES
+                    + " bytes evictions=" + mUidDetailCache.evictionCount() + "}";
+        }
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
@@ -29,11 +29,13 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.print.PrintManager;
 import android.printservice.PrintService;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -43,32 +45,47 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener {
 
+    private static final String TAG = "DynamicIndexableContentMonitor";
+
+    // Changes are processed once no new change came for this delay...
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
+    // ...but no later than this delay after the first pending change
+    private static final long MAX_DELAY_PROCESS_PACKAGE_CHANGE = 10000;
 
-    private static final int MSG_PACKAGE_AVAILABLE = 1;
-    private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_PROCESS_CHANGES = 1;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Latest availability of each package changed since the last processing, in order
+    private final Map<String, Boolean> mPendingPackages = new LinkedHashMap<String, Boolean>();
+    // Packages that became unavailable since the last processing, even if available again,
+    // as an update or a disable then enable must still drop their old data
+    private final Set<String> mUnavailablePackages = new HashSet<String>();
+    // Indexable classes to update, with whether their data must be deleted first
+    private final Map<String, Boolean> mPendingClassUpdates =
+            new LinkedHashMap<String, Boolean>();
+    private long mFirstPendingChangeTime;
+
+    private int mEventCount;
+    private int mIndexUpdateCount;
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_PACKAGE_AVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageAvailable(packageName);
-                } break;
-
-                case MSG_PACKAGE_UNAVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageUnavailable(packageName);
+                case MSG_PROCESS_CHANGES: {
+                    processChanges();
                 } break;
             }
         }
@@ -177,21 +194,40 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     mUserDictionaryContentObserver);
         }
 
+        mHandler.removeMessages(MSG_PROCESS_CHANGES);
+        mPendingPackages.clear();
+        mUnavailablePackages.clear();
+        mPendingClassUpdates.clear();
+
         mAccessibilityServices.clear();
         mPrintServices.clear();
         mImeServices.clear();
     }
 
+    /**
+     * Returns the number of package, input device and user dictionary events received.
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Returns the number of Index updates those events have been coalesced into.
+     */
+    public int getIndexUpdateCount() {
+        return mIndexUpdateCount;
+    }
+
     // Covers installed, appeared external storage with the package, upgraded.
     @Override
     public void onPackageAppeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+        postPackageChange(packageName, true);
     }
 
     // Covers uninstalled, removed external storage with the package.
     @Override
     public void onPackageDisappeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+        postPackageChange(packageName, false);
     }
 
     // Covers enabled, disabled.
@@ -202,16 +238,16 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 packageName);
         if (state == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
                 || state ==  PackageManager.COMPONENT_ENABLED_STATE_ENABLED) {
-            postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+            postPackageChange(packageName, true);
         } else {
-            postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+            postPackageChange(packageName, false);
         }
     }
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        mEventCount++;
+        postClassUpdate(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -221,13 +257,68 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        mEventCount++;
+        postClassUpdate(InputMethodAndLanguageSettings.class.getName(), true);
+    }
+
+    private void postPackageChange(String packageName, boolean available) {
+        mEventCount++;
+        // Only the latest state of a package matters, but keep the order of the first change
+        mPendingPackages.put(packageName, available);
+        if (!available) {
+            mUnavailablePackages.add(packageName);
+        }
+        scheduleProcessChanges();
+    }
+
+    private void postClassUpdate(String className, boolean rebuild) {
+        addClassUpdate(className, rebuild);
+        scheduleProcessChanges();
+    }
+
+    private void scheduleProcessChanges() {
+        final long now = SystemClock.uptimeMillis();
+        if (!mHandler.hasMessages(MSG_PROCESS_CHANGES)) {
+            mFirstPendingChangeTime = now;
+        }
+        // Wait for the burst to end, but not forever
+        final long processTime = Math.min(now + DELAY_PROCESS_PACKAGE_CHANGE,
+                mFirstPendingChangeTime + MAX_DELAY_PROCESS_PACKAGE_CHANGE);
+        mHandler.removeMessages(MSG_PROCESS_CHANGES);
+        mHandler.sendEmptyMessageAtTime(MSG_PROCESS_CHANGES, processTime);
+    }
+
+    private void processChanges() {
+        final int packageCount = mPendingPackages.size();
+        for (Map.Entry<String, Boolean> entry : mPendingPackages.entrySet()) {
+            final String packageName = entry.getKey();
+            if (mUnavailablePackages.contains(packageName)) {
+                handlePackageUnavailable(packageName);
+            }
+            if (entry.getValue()) {
+                handlePackageAvailable(packageName);
+            }
+        }
+        mPendingPackages.clear();
+        mUnavailablePackages.clear();
+
+        final int updateCount = mPendingClassUpdates.size();
+        for (Map.Entry<String, Boolean> entry : mPendingClassUpdates.entrySet()) {
+            Index.getInstance(mContext).updateFromClassNameResource(entry.getKey(),
+                    entry.getValue(), true);
+        }
+        mPendingClassUpdates.clear();
+        mIndexUpdateCount += updateCount;
+
+        Log.d(TAG, "Processed " + packageCount + " package(s) into " + updateCount +
+                " Index update(s); total " + mEventCount + " event(s), " + mIndexUpdateCount +
+                " Index update(s)");
     }
 
-    private void postMessage(int what, String packageName) {
-        Message message = mHandler.obtainMessage(what, packageName);
-        mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
+    private void addClassUpdate(String className, boolean rebuild) {
+        final Boolean pendingRebuild = mPendingClassUpdates.get(className);
+        mPendingClassUpdates.put(className,
+                rebuild || (pendingRebuild != null && pendingRebuild));
     }
 
     private void handlePackageAvailable(String packageName) {
@@ -235,8 +326,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                addClassUpdate(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -245,8 +335,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 final Intent intent = getPrintServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    addClassUpdate(PrintSettingsFragment.class.getName(), false);
                 }
             }
         }
@@ -256,8 +345,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Intent intent = getIMEServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    addClassUpdate(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -267,16 +355,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            addClassUpdate(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                addClassUpdate(PrintSettingsFragment.class.getName(), true);
             }
         }
 
@@ -284,8 +370,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                addClassUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -299,8 +384,8 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                mEventCount++;
+                postClassUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
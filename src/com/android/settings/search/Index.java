@@ -27,11 +27,12 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -44,19 +45,28 @@ import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_RANK;
@@ -84,6 +94,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.FingerprintColumns;
 
 public class Index {
 
@@ -123,9 +134,13 @@ public class Index {
             IndexColumns.INTENT_TARGET_PACKAGE,   // 10
             IndexColumns.INTENT_TARGET_CLASS,     // 11
             IndexColumns.ENABLED,                 // 12
-            IndexColumns.DATA_KEY_REF             // 13
+            IndexColumns.DATA_KEY_REF,            // 13
+            IndexColumns.USER_ID                  // 14
     };
 
+    // Ranking column added to the search results: 0 for a primary match, 1 for a secondary one
+    private static final String MATCH_TYPE = "match_type";
+
     private static final String[] MATCH_COLUMNS_PRIMARY = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
@@ -147,9 +162,8 @@ public class Index {
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
-    private static final String EMPTY = "";
-    private static final String NON_BREAKING_HYPHEN = "\u2011";
-    private static final String HYPHEN = "-";
+    // Prefix of the source keys used for raw data that does not have a class name
+    private static final String SOURCE_TITLE_PREFIX = "title:";
 
     private static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
             "SEARCH_INDEX_DATA_PROVIDER";
@@ -160,10 +174,101 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Whether single word queries are answered from an in-memory prefix index of the rows
+    private static final boolean USE_PREFIX_CACHE = true;
+
+    private static final char LIKE_ESCAPE_CHAR = '\\';
+
+    // Those SQL strings are constant so that their compiled statements get reused
+    private static final String SEARCH_SQL = buildSearchSQL();
+    private static final String SUGGESTIONS_LATEST_SQL = buildSuggestionsSQL(false);
+    private static final String SUGGESTIONS_PREFIX_SQL = buildSuggestionsSQL(true);
+
+    // If you change the order of columns here, you SHOULD change the values of IndexRow
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String INSERT_SQL = "INSERT OR REPLACE INTO " +
+            Tables.TABLE_PREFS_INDEX + " (" + TextUtils.join(", ", INSERT_COLUMNS) +
+            ") VALUES (" + TextUtils.join(", ", Collections.nCopies(INSERT_COLUMNS.length, "?")) +
+            ")";
+
+    // Bounded pool used for querying the remote providers and parsing the indexable data, the
+    // database being written by the UpdateIndexTask thread only
+    private static final int INDEXING_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ThreadPoolExecutor sIndexingExecutor = new ThreadPoolExecutor(
+            INDEXING_THREADS, INDEXING_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "Index #" + mCount.incrementAndGet());
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    static {
+        sIndexingExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private static Index sInstance;
 
-    private static final Pattern REMOVE_DIACRITICALS_PATTERN
-            = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    // Normalization runs on the indexing pool threads, and a normalizer reuses its buffer
+    private static final ThreadLocal<IndexTextNormalizer> sNormalizer =
+            new ThreadLocal<IndexTextNormalizer>() {
+                @Override
+                protected IndexTextNormalizer initialValue() {
+                    return new IndexTextNormalizer();
+                }
+            };
+
+    /**
+     * A private class to describe one row of the Index database, already normalized
+     */
+    private static class IndexRow {
+        // Values in the order of INSERT_COLUMNS
+        public final Object[] values;
+
+        public IndexRow(Object[] values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * A private class to describe the indexable data of one source to be written together
+     */
+    private static class IndexBatch {
+        public final List<SearchIndexableData> items = new ArrayList<SearchIndexableData>();
+        // Null if the data cannot be tracked or is a forced update
+        public String source;
+        public String fingerprint;
+        public boolean deletePrevious;
+        public Future<List<IndexRow>> rows;
+    }
 
     /**
      * A private class to describe the update data for the Index database
@@ -174,6 +279,7 @@ public class Index {
         public Map<String, List<String>> nonIndexableKeys;
 
         public boolean forceUpdate = false;
+        public boolean fullUpdate = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
@@ -186,6 +292,7 @@ public class Index {
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
             forceUpdate = other.forceUpdate;
+            fullUpdate = other.fullUpdate;
         }
 
         public UpdateData copy() {
@@ -197,11 +304,14 @@ public class Index {
             dataToDelete.clear();
             nonIndexableKeys.clear();
             forceUpdate = false;
+            fullUpdate = false;
         }
     }
 
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    private final IndexPrefixCache mPrefixCache =
+            new IndexPrefixCache(SELECT_COLUMNS, MATCH_TYPE);
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -230,56 +340,82 @@ public class Index {
         return mIsAvailable.get();
     }
 
-    public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
-
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
-
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
-
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
-
-        return new MergeCursor(cursors);
+    /**
+     * Search the Index for the given query.
+     *
+     * Primary matches (title and keywords) and secondary matches (summaries and entries) are
+     * returned by the same query, primary matches first and each group ordered by rank. The
+     * query has a constant SQL with bound arguments, so that its compiled statement is reused
+     * from the database statement cache across keystrokes.
+     *
+     * @param query the filtered query.
+     * @param cancellationSignal a signal to cancel the query when a newer one replaces it, or
+     *                           null. The query is run before returning, so the cancellation
+     *                           is effective for its whole duration.
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final String localeStr = Locale.getDefault().toString();
+        if (USE_PREFIX_CACHE && isAvailable()) {
+            final Cursor cached = mPrefixCache.search(getReadableDatabase(), query, localeStr,
+                    cancellationSignal);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final String[] args = new String[] {
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_PRIMARY),
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_SECONDARY),
+                localeStr
+        };
+        final Cursor cursor = getReadableDatabase().rawQuery(SEARCH_SQL, args,
+                cancellationSignal);
+        // Fill the cursor window now, so that it is not done lazily on the UI thread
+        cursor.getCount();
+        return cursor;
     }
 
-    public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+    public Cursor search(String query) {
+        return search(query, null);
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
-
+    /**
+     * Get the saved queries starting with the given query, or the latest saved queries if the
+     * query is empty.
+     *
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        if (USE_PREFIX_CACHE) {
+            return mPrefixCache.getSuggestions(getReadableDatabase(), query,
+                    MAX_PROPOSED_SUGGESTIONS);
+        }
+        final Cursor cursor;
         if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
+            cursor = getReadableDatabase().rawQuery(SUGGESTIONS_LATEST_SQL, null,
+                    cancellationSignal);
         } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+            cursor = getReadableDatabase().rawQuery(SUGGESTIONS_PREFIX_SQL,
+                    new String[] { escapeLikeString(query) + "%" }, cancellationSignal);
         }
+        cursor.getCount();
+        return cursor;
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    public Cursor getSuggestions(String query) {
+        return getSuggestions(query, null);
+    }
 
+    private static String escapeLikeString(String input) {
+        final int length = input.length();
+        final StringBuilder sb = new StringBuilder(length);
+        for (int n = 0; n < length; n++) {
+            final char c = input.charAt(n);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE_CHAR) {
+                sb.append(LIKE_ESCAPE_CHAR);
+            }
+            sb.append(c);
+        }
         return sb.toString();
     }
 
@@ -297,11 +433,28 @@ public class Index {
         }
     }
 
+    /**
+     * Update the Index with the data of all the well known remote providers. The providers are
+     * queried in the background.
+     */
     public void update() {
+        synchronized (mDataToProcess) {
+            mDataToProcess.fullUpdate = true;
+        }
+        updateInternal();
+    }
+
+    /**
+     * Query all the well known remote providers concurrently on the indexing pool, and add
+     * their data to the update data in the order of the providers. The base ranks are assigned
+     * here in that order too, rather than in whichever order the queries happen to run.
+     */
+    private void addIndexablesFromRemoteProviders(UpdateData data) {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final List<Future<UpdateData>> futures = new ArrayList<Future<UpdateData>>();
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
@@ -310,28 +463,47 @@ public class Index {
             }
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
+            final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            futures.add(sIndexingExecutor.submit(new Callable<UpdateData>() {
+                @Override
+                public UpdateData call() {
+                    final UpdateData result = new UpdateData();
+                    addIndexablesFromRemoteProvider(packageName, authority, baseRank, result);
+                    addNonIndexablesKeysFromRemoteProvider(packageName, authority, result);
+                    return result;
+                }
+            }));
         }
 
-        updateInternal();
+        final int count = futures.size();
+        for (int n = 0; n < count; n++) {
+            try {
+                final UpdateData result = futures.get(n).get();
+                data.dataToUpdate.addAll(result.dataToUpdate);
+                data.nonIndexableKeys.putAll(result.nonIndexableKeys);
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted while querying remote providers", e);
+                return;
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot query remote provider", e);
+            }
+        }
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    private boolean addIndexablesFromRemoteProvider(String packageName, String authority,
+            int baseRank, UpdateData data) {
         try {
-            final int baseRank = Ranking.getBaseRankForAuthority(authority);
-
             final Context context = mBaseAuthority.equals(authority) ?
                     mContext : mContext.createPackageContext(packageName, 0);
 
             final Uri uriForResources = buildUriForXmlResources(authority);
             addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, data);
 
             final Uri uriForRawData = buildUriForRawData(authority);
             addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, data);
             return true;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
@@ -341,10 +513,10 @@ public class Index {
     }
 
     private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
+                                                        String authority, UpdateData data) {
         final List<String> keys =
                 getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
+        data.nonIndexableKeys.put(packageName, keys);
     }
 
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
@@ -455,7 +627,12 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final UpdateData data = new UpdateData();
+        if (addIndexablesFromRemoteProvider(packageName, authority,
+                Ranking.getBaseRankForAuthority(authority), data)) {
+            synchronized (mDataToProcess) {
+                mDataToProcess.dataToUpdate.addAll(data.dataToUpdate);
+            }
             updateInternal();
         }
     }
@@ -528,7 +705,7 @@ public class Index {
     }
 
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, UpdateData data) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -566,7 +743,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    data.dataToUpdate.add(sir);
                 }
             }
         } finally {
@@ -575,7 +752,7 @@ public class Index {
     }
 
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, UpdateData updateData) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -629,7 +806,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    updateData.dataToUpdate.add(data);
                 }
             }
         } finally {
@@ -637,49 +814,73 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
+    private static String buildSearchSQL() {
+        final String matchWhere = Tables.TABLE_PREFS_INDEX + " MATCH ?";
+        final String filterWhere = " AND " + IndexColumns.LOCALE + " = ?3" +
+                " AND " + IndexColumns.ENABLED + " = 1";
+
         StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
+        appendSearchSelect(sb, 0);
+        sb.append(matchWhere).append("1").append(filterWhere);
+        sb.append(" UNION ALL ");
+        // Negate MATCH queries do not work, so exclude the primary matches by docid
+        appendSearchSelect(sb, 1);
+        sb.append(matchWhere).append("2").append(filterWhere);
+        sb.append(" AND ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" NOT IN (SELECT ");
+        sb.append(IndexColumns.DOCID);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(matchWhere).append("1");
+        sb.append(")");
+        sb.append(" ORDER BY ");
+        sb.append(MATCH_TYPE);
+        sb.append(", ");
+        sb.append(IndexColumns.DATA_RANK);
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
+    private static void appendSearchSelect(StringBuilder sb, int matchType) {
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
             sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
-                sb.append(", ");
-            }
+            sb.append(", ");
         }
+        sb.append(matchType);
+        sb.append(" AS ");
+        sb.append(MATCH_TYPE);
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
-        sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
+    private static String buildSuggestionsSQL(boolean withPrefix) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("SELECT ");
+        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_SAVED_QUERIES);
+
+        if (!withPrefix) {
+            sb.append(" ORDER BY rowId DESC");
+        } else {
+            sb.append(" WHERE ");
+            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
+            sb.append(" LIKE ? ESCAPE '");
+            sb.append(LIKE_ESCAPE_CHAR);
+            sb.append("'");
+        }
+
+        sb.append(" LIMIT ");
+        sb.append(MAX_PROPOSED_SUGGESTIONS);
+
         return sb.toString();
     }
 
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+    private static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
         final String value = query + "*";
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
@@ -694,23 +895,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(List<IndexRow> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<IndexRow> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,7 +944,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<IndexRow> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -759,7 +960,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -785,7 +986,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -811,7 +1012,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1052,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1084,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1096,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,7 +1112,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<IndexRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -936,7 +1137,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,7 +1173,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,7 +1181,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1196,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1003,18 +1204,91 @@ public class Index {
                 key, userId);
     }
 
+    /**
+     * Returns the key under which the rows of the data are tracked in the source fingerprints
+     * table: its class name, or its title for a raw data without class name. Returns null if
+     * the data cannot be tracked.
+     */
+    private static String getSourceKey(SearchIndexableData data) {
+        if (!TextUtils.isEmpty(data.className)) {
+            return data.className;
+        }
+        if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            if (!TextUtils.isEmpty(raw.title)) {
+                return SOURCE_TITLE_PREFIX + raw.title;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compute the fingerprint of all the data provided for one source. The fingerprint changes
+     * when the package providing the data is updated (versionCode, last update time or APK
+     * timestamp, the latter covering system apps updated by an OTA) or when the data itself
+     * (resource ids, raw strings, intents, non indexable keys) changes.
+     */
+    private String computeSourceFingerprint(List<SearchIndexableData> items,
+            Map<String, List<String>> nonIndexableKeys, Map<String, String> packageFingerprints) {
+        final SearchIndexableData first = items.get(0);
+        final String packageName = !TextUtils.isEmpty(first.packageName) ?
+                first.packageName : mContext.getPackageName();
+
+        int hash = Objects.hashCode(nonIndexableKeys.get(packageName));
+        final int count = items.size();
+        for (int n = 0; n < count; n++) {
+            hash = 31 * hash + hashSearchIndexableData(items.get(n));
+        }
+
+        final StringBuilder sb = new StringBuilder(
+                getPackageFingerprint(packageName, packageFingerprints));
+        sb.append('-');
+        sb.append(Integer.toHexString(hash));
+        return sb.toString();
+    }
+
+    private String getPackageFingerprint(String packageName, Map<String, String> cache) {
+        String fingerprint = cache.get(packageName);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        try {
+            final PackageInfo info =
+                    mContext.getPackageManager().getPackageInfo(packageName, 0);
+            final long apkTime = new File(info.applicationInfo.sourceDir).lastModified();
+            fingerprint = info.versionCode + "-" + info.lastUpdateTime + "-" + apkTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOG_TAG, "Cannot find package: " + packageName);
+            fingerprint = Build.VERSION.INCREMENTAL;
+        }
+        cache.put(packageName, fingerprint);
+        return fingerprint;
+    }
+
+    private static int hashSearchIndexableData(SearchIndexableData data) {
+        // Ranks and icons are not part of the hash as they are coming from the code of the
+        // package, which is already covered by the package fingerprint
+        int hash = Objects.hash(data.className, data.intentAction, data.intentTargetPackage,
+                data.intentTargetClass, data.key, data.userId);
+        if (data instanceof SearchIndexableResource) {
+            hash = 31 * hash + ((SearchIndexableResource) data).xmlResId;
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            hash = 31 * hash + Objects.hash(raw.title, raw.summaryOn, raw.summaryOff,
+                    raw.entries, raw.keywords, raw.screenTitle);
+        }
+        return hash;
+    }
+
     private static String normalizeHyphen(String input) {
-        return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
+        return sNormalizer.get().normalizeHyphen(input);
     }
 
     private static String normalizeString(String input) {
-        final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
-        final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
-
-        return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
+        return sNormalizer.get().normalizeString(input);
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1306,29 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        // Values must be in the order of INSERT_COLUMNS
+        rows.add(new IndexRow(new Object[] {
+                docId,
+                locale,
+                rank,
+                updatedTitle,
+                normalizedTitle,
+                updatedSummaryOn,
+                normalizedSummaryOn,
+                updatedSummaryOff,
+                normalizedSummaryOff,
+                entries,
+                keywords,
+                className,
+                screenTitle,
+                intentAction,
+                intentTargetPackage,
+                intentTargetClass,
+                iconResId,
+                enabled ? 1 : 0,
+                key,
+                userId
+        }));
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1159,6 +1433,8 @@ public class Index {
         @Override
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
+            // The cached rows will be reloaded from the updated Index on the next search
+            mPrefixCache.invalidate();
             mIsAvailable.set(true);
         }
 
@@ -1169,6 +1445,14 @@ public class Index {
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
 
             final boolean forceUpdate = params[0].forceUpdate;
+            final boolean fullUpdate = params[0].fullUpdate;
+
+            if (fullUpdate) {
+                final long current = System.currentTimeMillis();
+                addIndexablesFromRemoteProviders(params[0]);
+                Log.d(LOG_TAG, "Querying remote providers took " +
+                        (System.currentTimeMillis() - current) + " millis");
+            }
 
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
@@ -1180,7 +1464,7 @@ public class Index {
                 }
                 if (dataToUpdate.size() > 0) {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                            forceUpdate, fullUpdate);
                 }
                 database.setTransactionSuccessful();
             } finally {
@@ -1192,33 +1476,188 @@ public class Index {
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+                boolean forceUpdate, boolean fullUpdate) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
-            final int count = dataToUpdate.size();
-            for (int n = 0; n < count; n++) {
-                final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+            final List<IndexBatch> batches = new ArrayList<IndexBatch>();
+            Map<String, String> indexedFingerprints = null;
+
+            if (forceUpdate) {
+                // A forced update is only a partial contribution to its sources: index it as is
+                // and leave the fingerprints of its sources untouched
+                final int count = dataToUpdate.size();
+                for (int n = 0; n < count; n++) {
+                    final IndexBatch batch = new IndexBatch();
+                    batch.items.add(dataToUpdate.get(n));
+                    batches.add(batch);
+                }
+            } else {
+                indexedFingerprints = getSourceFingerprints(database, localeStr);
+                final Map<String, IndexBatch> sources = new LinkedHashMap<String, IndexBatch>();
+
+                final int count = dataToUpdate.size();
+                for (int n = 0; n < count; n++) {
+                    final SearchIndexableData data = dataToUpdate.get(n);
+                    final String source = getSourceKey(data);
+                    if (source == null) {
+                        // Cannot be tracked, so always index it
+                        final IndexBatch batch = new IndexBatch();
+                        batch.items.add(data);
+                        batches.add(batch);
+                        continue;
+                    }
+                    IndexBatch batch = sources.get(source);
+                    if (batch == null) {
+                        batch = new IndexBatch();
+                        batch.source = source;
+                        sources.put(source, batch);
+                    }
+                    batch.items.add(data);
+                }
+
+                final Map<String, String> packageFingerprints = new HashMap<String, String>();
+                for (IndexBatch batch : sources.values()) {
+                    batch.fingerprint = computeSourceFingerprint(batch.items, nonIndexableKeys,
+                            packageFingerprints);
+                    final String previousFingerprint = indexedFingerprints.remove(batch.source);
+                    if (batch.fingerprint.equals(previousFingerprint)) {
+                        continue;
+                    }
+                    // The source has changed, so its previous rows may be stale
+                    batch.deletePrevious = (previousFingerprint != null);
+                    batches.add(batch);
+                }
+            }
+            final long planned = System.currentTimeMillis();
+
+            // Parse and normalize on the indexing pool while this thread writes the rows of the
+            // batches, in order, as soon as they are ready
+            final AtomicLong parseMillis = new AtomicLong();
+            for (IndexBatch batch : batches) {
+                batch.rows = sIndexingExecutor.submit(
+                        new ParseBatchCallable(batch, localeStr, nonIndexableKeys, parseMillis));
+            }
+
+            long waitMillis = 0;
+            int rowCount = 0;
+            final SQLiteStatement insert = database.compileStatement(INSERT_SQL);
+            try {
+                for (IndexBatch batch : batches) {
+                    final long waitStart = System.currentTimeMillis();
+                    final List<IndexRow> rows;
+                    try {
+                        rows = batch.rows.get();
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "Interrupted while indexing locale: " + localeStr, e);
+                        break;
+                    } catch (ExecutionException e) {
+                        Log.e(LOG_TAG, "Cannot index: " + batch.source + " for locale: " +
+                                localeStr, e);
+                        continue;
+                    } finally {
+                        waitMillis += System.currentTimeMillis() - waitStart;
+                    }
+
+                    if (batch.deletePrevious) {
+                        deleteSource(database, localeStr, batch.source);
+                    }
+                    insertRows(insert, rows);
+                    rowCount += rows.size();
+                    if (batch.source != null && batch.fingerprint != null) {
+                        putSourceFingerprint(database, localeStr, batch.source, batch.fingerprint);
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+
+            // Only a full update knows about all the sources, so only then can we remove the
+            // ones that are no more provided
+            int removedCount = 0;
+            if (fullUpdate && indexedFingerprints != null) {
+                for (String source : indexedFingerprints.keySet()) {
+                    deleteSource(database, localeStr, source);
+                    removedCount++;
                 }
             }
 
             final long now = System.currentTimeMillis();
-            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+            Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " + (now - current) +
+                    " millis: " + batches.size() + " batch(es) and " + rowCount + " row(s), " +
+                    removedCount + " source(s) removed; planning " + (planned - current) +
+                    " millis, parsing " + parseMillis.get() + " millis on " + INDEXING_THREADS +
+                    " thread(s), writing " + (now - planned - waitMillis) + " millis");
             return result;
         }
 
+        private void insertRows(SQLiteStatement insert, List<IndexRow> rows) {
+            final int count = rows.size();
+            for (int n = 0; n < count; n++) {
+                final Object[] values = rows.get(n).values;
+                insert.clearBindings();
+                for (int i = 0; i < values.length; i++) {
+                    final Object value = values[i];
+                    // Bind indices are 1-based
+                    if (value == null) {
+                        insert.bindNull(i + 1);
+                    } else if (value instanceof Integer) {
+                        insert.bindLong(i + 1, (Integer) value);
+                    } else {
+                        insert.bindString(i + 1, value.toString());
+                    }
+                }
+                insert.executeInsert();
+            }
+        }
+
+        private Map<String, String> getSourceFingerprints(SQLiteDatabase database,
+                String locale) {
+            final Map<String, String> result = new HashMap<String, String>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_SOURCE_FINGERPRINTS,
+                        new String[] { FingerprintColumns.SOURCE, FingerprintColumns.FINGERPRINT },
+                        FingerprintColumns.LOCALE + "=?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return result;
+        }
+
+        private void putSourceFingerprint(SQLiteDatabase database, String locale,
+                String source, String fingerprint) {
+            final ContentValues values = new ContentValues();
+            values.put(FingerprintColumns.SOURCE, source);
+            values.put(FingerprintColumns.LOCALE, locale);
+            values.put(FingerprintColumns.FINGERPRINT, fingerprint);
+            database.replaceOrThrow(Tables.TABLE_SOURCE_FINGERPRINTS, null, values);
+        }
+
+        private void deleteSource(SQLiteDatabase database, String locale, String source) {
+            final String[] whereArgs;
+            final String whereClause;
+            if (source.startsWith(SOURCE_TITLE_PREFIX)) {
+                whereClause = IndexColumns.DATA_TITLE + "=? AND " + IndexColumns.LOCALE + "=?";
+                whereArgs = new String[] {
+                        source.substring(SOURCE_TITLE_PREFIX.length()), locale };
+            } else {
+                whereClause = IndexColumns.CLASS_NAME + "=? AND " + IndexColumns.LOCALE + "=?";
+                whereArgs = new String[] { source, locale };
+            }
+            database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+            database.delete(Tables.TABLE_SOURCE_FINGERPRINTS,
+                    FingerprintColumns.SOURCE + "=? AND " + FingerprintColumns.LOCALE + "=?",
+                    new String[] { source, locale });
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1255,25 +1694,41 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
+    }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
-            try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+    /**
+     * A private class for parsing and normalizing the data of one batch on the indexing pool
+     */
+    private class ParseBatchCallable implements Callable<List<IndexRow>> {
+        private final IndexBatch mBatch;
+        private final String mLocaleStr;
+        private final Map<String, List<String>> mNonIndexableKeys;
+        private final AtomicLong mParseMillis;
+
+        public ParseBatchCallable(IndexBatch batch, String localeStr,
+                Map<String, List<String>> nonIndexableKeys, AtomicLong parseMillis) {
+            mBatch = batch;
+            mLocaleStr = localeStr;
+            mNonIndexableKeys = nonIndexableKeys;
+            mParseMillis = parseMillis;
+        }
+
+        @Override
+        public List<IndexRow> call() {
+            final long current = System.currentTimeMillis();
+            final List<IndexRow> rows = new ArrayList<IndexRow>();
+            final int count = mBatch.items.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = mBatch.items.get(n);
+                try {
+                    indexOneSearchIndexableData(rows, mLocaleStr, data, mNonIndexableKeys);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG,
+                            "Cannot index: " + data.className + " for locale: " + mLocaleStr, e);
                 }
             }
-            return result;
+            mParseMillis.addAndGet(System.currentTimeMillis() - current);
+            return rows;
         }
     }
 
@@ -1313,6 +1768,7 @@ public class Index {
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
             }
+            mPrefixCache.invalidateSavedQueries();
 
             return lastInsertedRowId;
         }
@@ -28,12 +28,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_SOURCE_FINGERPRINTS = "source_fingerprints";
     }
 
     public interface IndexColumns {
@@ -63,6 +64,12 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface FingerprintColumns {
+        public static final String SOURCE = "source";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
     public interface SavedQueriesColums  {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -124,10 +131,27 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_SOURCE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_SOURCE_FINGERPRINTS +
+                    "(" +
+                    FingerprintColumns.SOURCE + " VARCHAR(256) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintColumns.FINGERPRINT + " VARCHAR(256) NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + FingerprintColumns.SOURCE + ", " +
+                    FingerprintColumns.LOCALE + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "';";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -153,6 +177,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_SOURCE_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +189,10 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            // No need to drop the Index: every indexed source carries a fingerprint of the
+            // package that provided it, so only the sources that changed will be re-indexed
+            Log.i(TAG, "Build-version is not the same, Index will be updated incrementally");
+            updateBuildVersion(db);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -195,6 +221,14 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    private void updateBuildVersion(SQLiteDatabase db) {
+        try {
+            db.execSQL(UPDATE_BUILD_VERSION);
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot update build version in Index metadata", e);
+        }
+    }
+
     private String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
@@ -219,5 +253,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SOURCE_FINGERPRINTS);
     }
 }
@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.SavedQueriesColums;
+
+/**
+ * An in-memory prefix index over the Index rows of one locale, answering the single word
+ * prefix queries of the search without going to the database.
+ *
+ * The rows are loaded lazily on the first query after an invalidation. The database stays the
+ * source of truth: a query that cannot be answered the same way FTS would (several words) is
+ * left to the database.
+ */
+final class IndexPrefixCache {
+
+    private static final String LOG_TAG = "IndexPrefixCache";
+
+    // Normalized columns loaded after the selected ones, only used for matching
+    private static final String[] NORMALIZED_COLUMNS = new String[] {
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED
+    };
+
+    private static final int[] PRIMARY_COLUMNS = new int[] {
+            Index.COLUMN_INDEX_TITLE,
+            Index.COLUMN_INDEX_KEYWORDS
+    };
+
+    private static final int[] SECONDARY_COLUMNS = new int[] {
+            Index.COLUMN_INDEX_SUMMARY_ON,
+            Index.COLUMN_INDEX_SUMMARY_OFF,
+            Index.COLUMN_INDEX_ENTRIES
+    };
+
+    private static final String SAVED_QUERIES_SQL =
+            "SELECT " + SavedQueriesColums.QUERY + " FROM " + Tables.TABLE_SAVED_QUERIES +
+                    " ORDER BY rowId";
+
+    /**
+     * The prefix index of one locale: sorted unique tokens, and for each of them the rows
+     * matching in a primary or a secondary column. Rows are sorted by rank.
+     */
+    private static class Snapshot {
+        String locale;
+        Object[][] rows;
+        String[] tokens;
+        int[][] primaryRows;
+        int[][] secondaryRows;
+    }
+
+    private static class Postings {
+        final ArrayList<Integer> primary = new ArrayList<Integer>();
+        final ArrayList<Integer> secondary = new ArrayList<Integer>();
+    }
+
+    private final String[] mSelectColumns;
+    private final String[] mResultColumns;
+    private final String mLoadSql;
+
+    private final Object mLock = new Object();
+    private int mGeneration;
+    private Snapshot mSnapshot;
+    // Saved queries ordered by rowId, oldest first
+    private String[] mSavedQueries;
+
+    /**
+     * @param selectColumns the columns returned by the search results.
+     * @param matchTypeColumn the name of the match type column added to the search results.
+     */
+    IndexPrefixCache(String[] selectColumns, String matchTypeColumn) {
+        mSelectColumns = selectColumns;
+
+        mResultColumns = Arrays.copyOf(selectColumns, selectColumns.length + 1);
+        mResultColumns[selectColumns.length] = matchTypeColumn;
+
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        for (int n = 0; n < selectColumns.length; n++) {
+            sb.append(selectColumns[n]);
+            sb.append(", ");
+        }
+        sb.append(TextUtils.join(", ", NORMALIZED_COLUMNS));
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1 ORDER BY ");
+        sb.append(IndexColumns.DATA_RANK);
+        mLoadSql = sb.toString();
+    }
+
+    /**
+     * Drop the cached rows, they will be reloaded on the next query.
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mSnapshot = null;
+            mSavedQueries = null;
+        }
+    }
+
+    /**
+     * Drop the cached saved queries, they will be reloaded on the next query.
+     */
+    void invalidateSavedQueries() {
+        synchronized (mLock) {
+            mGeneration++;
+            mSavedQueries = null;
+        }
+    }
+
+    /**
+     * Search the cached rows.
+     *
+     * @return a cursor with the same columns and order as the database search, or null if the
+     *         query cannot be answered from the cache.
+     */
+    Cursor search(SQLiteDatabase database, String query, String locale,
+            CancellationSignal cancellationSignal) {
+        final String prefix = getPrefixToken(query);
+        if (prefix == null) {
+            return null;
+        }
+
+        final Snapshot snapshot = getSnapshot(database, locale, cancellationSignal);
+        if (snapshot == null) {
+            return null;
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        final int rowCount = snapshot.rows.length;
+        final byte[] matchTypes = new byte[rowCount];
+        final String[] tokens = snapshot.tokens;
+        for (int n = lowerBound(tokens, prefix); n < tokens.length; n++) {
+            if (!tokens[n].startsWith(prefix)) {
+                break;
+            }
+            for (int row : snapshot.primaryRows[n]) {
+                matchTypes[row] = 1;
+            }
+            for (int row : snapshot.secondaryRows[n]) {
+                if (matchTypes[row] == 0) {
+                    matchTypes[row] = 2;
+                }
+            }
+        }
+
+        // Primary matches first, then secondary ones, each already ordered by rank
+        int matchCount = 0;
+        for (int row = 0; row < rowCount; row++) {
+            if (matchTypes[row] != 0) {
+                matchCount++;
+            }
+        }
+        final int[] matchedRows = new int[matchCount];
+        int primaryCount = 0;
+        int n = 0;
+        for (int matchType = 1; matchType <= 2; matchType++) {
+            for (int row = 0; row < rowCount; row++) {
+                if (matchTypes[row] == matchType) {
+                    matchedRows[n++] = row;
+                }
+            }
+            if (matchType == 1) {
+                primaryCount = n;
+            }
+        }
+        return new RowsCursor(mResultColumns, snapshot.rows, matchedRows, primaryCount);
+    }
+
+    /**
+     * A cursor over the matched rows of a snapshot. The values are read from the snapshot when
+     * the list asks for them instead of being copied for every match up front, so the cost of
+     * a query does not depend on how many of its results end up being shown.
+     */
+    private static final class RowsCursor extends AbstractCursor {
+        private final String[] mColumns;
+        private final Object[][] mRows;
+        private final int[] mMatchedRows;
+        private final int mPrimaryCount;
+        private final int mMatchTypeColumn;
+
+        RowsCursor(String[] columns, Object[][] rows, int[] matchedRows, int primaryCount) {
+            mColumns = columns;
+            mRows = rows;
+            mMatchedRows = matchedRows;
+            mPrimaryCount = primaryCount;
+            mMatchTypeColumn = columns.length - 1;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumns.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            if (mPos < 0 || mPos >= mMatchedRows.length) {
+                throw new IllegalStateException("Invalid position " + mPos);
+            }
+            if (column == mMatchTypeColumn) {
+                return mPos < mPrimaryCount ? 0 : 1;
+            }
+            return mRows[mMatchedRows[mPos]][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mMatchedRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            final Object value = get(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public int getType(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            }
+            return value instanceof Number ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+
+    /**
+     * Get the saved queries starting with the query, or the latest ones if the query is empty.
+     * This matches what the LIKE query of the database returns.
+     */
+    Cursor getSuggestions(SQLiteDatabase database, String query, int maxCount) {
+        String[] savedQueries;
+        int generation;
+        synchronized (mLock) {
+            savedQueries = mSavedQueries;
+            generation = mGeneration;
+        }
+        if (savedQueries == null) {
+            savedQueries = loadSavedQueries(database);
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mSavedQueries = savedQueries;
+                }
+            }
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(new String[] { SavedQueriesColums.QUERY });
+        if (TextUtils.isEmpty(query)) {
+            for (int n = savedQueries.length - 1; n >= 0 && cursor.getCount() < maxCount; n--) {
+                cursor.addRow(new Object[] { savedQueries[n] });
+            }
+        } else {
+            final String prefix = foldAsciiCase(query);
+            for (int n = 0; n < savedQueries.length && cursor.getCount() < maxCount; n++) {
+                if (foldAsciiCase(savedQueries[n]).startsWith(prefix)) {
+                    cursor.addRow(new Object[] { savedQueries[n] });
+                }
+            }
+        }
+        return cursor;
+    }
+
+    private Snapshot getSnapshot(SQLiteDatabase database, String locale,
+            CancellationSignal cancellationSignal) {
+        int generation;
+        synchronized (mLock) {
+            if (mSnapshot != null && mSnapshot.locale.equals(locale)) {
+                return mSnapshot;
+            }
+            generation = mGeneration;
+        }
+
+        final long start = System.currentTimeMillis();
+        final Snapshot snapshot = loadSnapshot(database, locale, cancellationSignal);
+        Log.d(LOG_TAG, "Loading " + snapshot.rows.length + " rows for locale '" + locale +
+                "' took " + (System.currentTimeMillis() - start) + " millis");
+
+        synchronized (mLock) {
+            // Do not keep rows loaded before an invalidation
+            if (generation == mGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private Snapshot loadSnapshot(SQLiteDatabase database, String locale,
+            CancellationSignal cancellationSignal) {
+        final int selectCount = mSelectColumns.length;
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+        final Cursor cursor = database.rawQuery(mLoadSql, new String[] { locale },
+                cancellationSignal);
+        try {
+            while (cursor.moveToNext()) {
+                final int row = rows.size();
+                final Object[] values = new Object[selectCount];
+                for (int n = 0; n < selectCount; n++) {
+                    values[n] = cursor.getString(n);
+                }
+                rows.add(values);
+
+                for (int column : PRIMARY_COLUMNS) {
+                    addTokens(postings, cursor.getString(column), row, true);
+                }
+                // Normalized title
+                addTokens(postings, cursor.getString(selectCount), row, true);
+                for (int column : SECONDARY_COLUMNS) {
+                    addTokens(postings, cursor.getString(column), row, false);
+                }
+                // Normalized summaries
+                addTokens(postings, cursor.getString(selectCount + 1), row, false);
+                addTokens(postings, cursor.getString(selectCount + 2), row, false);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final Snapshot snapshot = new Snapshot();
+        snapshot.locale = locale;
+        snapshot.rows = rows.toArray(new Object[rows.size()][]);
+        snapshot.tokens = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(snapshot.tokens);
+        snapshot.primaryRows = new int[snapshot.tokens.length][];
+        snapshot.secondaryRows = new int[snapshot.tokens.length][];
+        for (int n = 0; n < snapshot.tokens.length; n++) {
+            final Postings p = postings.get(snapshot.tokens[n]);
+            snapshot.primaryRows[n] = toArray(p.primary);
+            snapshot.secondaryRows[n] = toArray(p.secondary);
+        }
+        return snapshot;
+    }
+
+    private static String[] loadSavedQueries(SQLiteDatabase database) {
+        final Cursor cursor = database.rawQuery(SAVED_QUERIES_SQL, null);
+        try {
+            final String[] result = new String[cursor.getCount()];
+            int n = 0;
+            while (cursor.moveToNext()) {
+                result[n++] = cursor.getString(0);
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Split the text the way the FTS "simple" tokenizer does: ASCII letters and digits and all
+     * non ASCII characters are part of tokens, ASCII letters are folded to lower case.
+     */
+    private static void addTokens(Map<String, Postings> postings, String text, int row,
+            boolean primary) {
+        if (text == null) {
+            return;
+        }
+        final int length = text.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean tokenChar = (n < length) && isTokenChar(text.charAt(n));
+            if (tokenChar && start < 0) {
+                start = n;
+            } else if (!tokenChar && start >= 0) {
+                final String token = foldAsciiCase(text.substring(start, n));
+                Postings p = postings.get(token);
+                if (p == null) {
+                    p = new Postings();
+                    postings.put(token, p);
+                }
+                final ArrayList<Integer> rows = primary ? p.primary : p.secondary;
+                // Rows are added in order, so only the last one can be a duplicate
+                if (rows.isEmpty() || rows.get(rows.size() - 1) != row) {
+                    rows.add(row);
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the token to look for, or null if the query is not a single token.
+     */
+    private static String getPrefixToken(String query) {
+        if (query == null) {
+            return null;
+        }
+        final String trimmed = query.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        for (int n = 0; n < trimmed.length(); n++) {
+            if (!isTokenChar(trimmed.charAt(n))) {
+                return null;
+            }
+        }
+        return foldAsciiCase(trimmed);
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
+    }
+
+    private static String foldAsciiCase(String input) {
+        final int length = input.length();
+        for (int n = 0; n < length; n++) {
+            final char c = input.charAt(n);
+            if (c >= 'A' && c <= 'Z') {
+                final char[] chars = input.toCharArray();
+                for (int i = n; i < length; i++) {
+                    if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                        chars[i] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return input;
+    }
+
+    private static int lowerBound(String[] tokens, String prefix) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (tokens[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        final int size = list.size();
+        final int[] result = new int[size];
+        for (int n = 0; n < size; n++) {
+            result[n] = list.get(n);
+        }
+        return result;
+    }
+}
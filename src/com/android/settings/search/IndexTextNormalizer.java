@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Normalizes the text of the Index: hyphen folding, diacritics stripping and case folding.
+ *
+ * The output is the same as the regex based implementation it replaces:
+ * <pre>
+ *   hyphen:     input.replaceAll(NON_BREAKING_HYPHEN, "-")
+ *   normalized: Normalizer.normalize(input.replaceAll("-", ""), NFD)
+ *                   .replaceAll("\\p{InCombiningDiacriticalMarks}+", "").toLowerCase()
+ * </pre>
+ * ASCII text, which is most of the text of the Index, is handled with a single pass over a
+ * lower case table; other text still goes through {@link Normalizer} and
+ * {@link String#toLowerCase()} as their output depends on the full Unicode tables.
+ *
+ * An instance reuses its buffer, so it must not be shared between threads.
+ */
+public final class IndexTextNormalizer {
+
+    private static final String EMPTY = "";
+    private static final char NON_BREAKING_HYPHEN = '\u2011';
+    private static final char HYPHEN = '-';
+
+    // The "Combining Diacritical Marks" Unicode block
+    private static final char COMBINING_DIACRITICAL_MARKS_FIRST = '\u0300';
+    private static final char COMBINING_DIACRITICAL_MARKS_LAST = '\u036f';
+
+    private static final char[] ASCII_LOWER_CASE = new char[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            ASCII_LOWER_CASE[c] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+    }
+
+    private char[] mBuffer = new char[64];
+
+    /**
+     * Replace the non breaking hyphens by hyphens.
+     *
+     * @return the hyphen normalized input, or an empty string if the input is null.
+     */
+    public String normalizeHyphen(String input) {
+        if (input == null) {
+            return EMPTY;
+        }
+        return (input.indexOf(NON_BREAKING_HYPHEN) < 0) ?
+                input : input.replace(NON_BREAKING_HYPHEN, HYPHEN);
+    }
+
+    /**
+     * Remove the hyphens and the diacritics, and fold to lower case in the default locale.
+     *
+     * @return the normalized input, or an empty string if the input is null.
+     */
+    public String normalizeString(String input) {
+        if (input == null) {
+            return EMPTY;
+        }
+        final int length = input.length();
+        final char[] buffer = ensureBuffer(length);
+        int count = 0;
+        for (int n = 0; n < length; n++) {
+            final char c = input.charAt(n);
+            if (c >= 128) {
+                return normalizeNonAscii(input);
+            }
+            if (c != HYPHEN) {
+                buffer[count++] = ASCII_LOWER_CASE[c];
+            }
+        }
+        if (hasSpecialAsciiCasing(Locale.getDefault())) {
+            return normalizeNonAscii(input);
+        }
+        return new String(buffer, 0, count);
+    }
+
+    private String normalizeNonAscii(String input) {
+        final String noHyphen = removeChar(input, HYPHEN);
+        final String normalized = Normalizer.normalize(noHyphen, Normalizer.Form.NFD);
+
+        final int length = normalized.length();
+        final char[] buffer = ensureBuffer(length);
+        int count = 0;
+        for (int n = 0; n < length; n++) {
+            final char c = normalized.charAt(n);
+            if (c < COMBINING_DIACRITICAL_MARKS_FIRST || c > COMBINING_DIACRITICAL_MARKS_LAST) {
+                buffer[count++] = c;
+            }
+        }
+        final String stripped = (count == length) ? normalized : new String(buffer, 0, count);
+        return stripped.toLowerCase();
+    }
+
+    private String removeChar(String input, char toRemove) {
+        if (input.indexOf(toRemove) < 0) {
+            return input;
+        }
+        final int length = input.length();
+        final char[] buffer = ensureBuffer(length);
+        int count = 0;
+        for (int n = 0; n < length; n++) {
+            final char c = input.charAt(n);
+            if (c != toRemove) {
+                buffer[count++] = c;
+            }
+        }
+        return new String(buffer, 0, count);
+    }
+
+    private char[] ensureBuffer(int length) {
+        if (mBuffer.length < length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Turkish and Azeri lower case 'I' as a dotless 'i', so ASCII cannot use the table there.
+     */
+    private static boolean hasSpecialAsciiCasing(Locale locale) {
+        final String language = locale.getLanguage();
+        return "tr".equals(language) || "az".equals(language);
+    }
+}
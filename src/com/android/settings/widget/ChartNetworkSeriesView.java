@@ -24,6 +24,7 @@ import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
@@ -56,6 +57,21 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    // Buckets of mStats, computed once when bound
+    private long[] mBucketStart;
+    private long[] mBucketEnd;
+    /** Total bytes from the first bucket through each bucket. */
+    private long[] mCumulative;
+
+    /**
+     * Series outline with x in milliseconds since the first bucket and y in bytes. It only
+     * depends on the bound data, and is mapped onto the axes through {@link #mTransform}.
+     */
+    private Path mRawPathStroke;
+    private Path mRawPathFill;
+    private boolean mRawPathValid = false;
+    private final Matrix mTransform = new Matrix();
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
@@ -72,7 +88,6 @@ public class ChartNetworkSeriesView extends View {
     private boolean mEstimateVisible = false;
     private boolean mSecondary = false;
 
-    private long mMax;
     private long mMaxEstimate;
 
     public ChartNetworkSeriesView(Context context) {
@@ -102,6 +117,8 @@ public class ChartNetworkSeriesView extends View {
 
         a.recycle();
 
+        mRawPathStroke = new Path();
+        mRawPathFill = new Path();
         mPathStroke = new Path();
         mPathFill = new Path();
         mPathEstimate = new Path();
@@ -143,156 +160,257 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        computeBuckets();
+        mRawPathValid = false;
         invalidatePath();
-        invalidate();
     }
 
     public void setBounds(long start, long end) {
-        mStart = start;
-        mEnd = end;
+        if (mStart != start || mEnd != end) {
+            mStart = start;
+            mEnd = end;
+            mPathValid = false;
+        }
     }
 
     public void setSecondary(boolean secondary) {
         mSecondary = secondary;
     }
 
+    /**
+     * Map the series onto the axes again. Only the transform is recomputed
+     * unless the bound data changed.
+     */
     public void invalidatePath() {
         mPathValid = false;
-        mMax = 0;
         invalidate();
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        invalidatePath();
+    }
+
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Read the bucket times and cumulative totals of the bound
+     * {@link NetworkStatsHistory}, which paths are then generated from.
      */
-    private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
-
-        mMax = 0;
-        mPathStroke.reset();
-        mPathFill.reset();
-        mPathEstimate.reset();
-        mPathValid = true;
-
+    private void computeBuckets() {
         // bail when not enough stats to render
         if (mStats == null || mStats.size() < 2) {
+            mBucketStart = null;
+            mBucketEnd = null;
+            mCumulative = null;
             return;
         }
 
-        final int width = getWidth();
-        final int height = getHeight();
-
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
+        final int size = mStats.size();
+        mBucketStart = new long[size];
+        mBucketEnd = new long[size];
+        mCumulative = new long[size];
 
         long totalData = 0;
-
         NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
+        for (int i = 0; i < size; i++) {
             entry = mStats.getValues(i, entry);
+            totalData += entry.rxBytes + entry.txBytes;
+            mBucketStart[i] = entry.bucketStart;
+            mBucketEnd[i] = entry.bucketStart + entry.bucketDuration;
+            mCumulative[i] = totalData;
+        }
+    }
 
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
+    /**
+     * Erase any existing raw {@link Path} and generate series outline from the
+     * buckets of the bound {@link NetworkStatsHistory}.
+     */
+    private void generateRawPath() {
+        if (LOGD) Log.d(TAG, "generateRawPath()");
 
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
+        mRawPathStroke.reset();
+        mRawPathFill.reset();
+        mRawPathValid = true;
 
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
+        if (mCumulative == null) {
+            return;
+        }
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+        final long origin = mBucketStart[0];
+        float lastX = 0;
+        float lastY = 0;
+        long lastTime = origin;
 
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
+        // move into starting position
+        mRawPathStroke.moveTo(lastX, lastY);
+        mRawPathFill.moveTo(lastX, lastY);
+
+        final int size = mCumulative.length;
+        for (int i = 0; i < size; i++) {
+            final long startTime = mBucketStart[i];
+            final float startX = startTime - origin;
+            final float endX = mBucketEnd[i] - origin;
+            final float endY = mCumulative[i];
 
             if (lastTime != startTime) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                mRawPathStroke.lineTo(startX, lastY);
+                mRawPathFill.lineTo(startX, lastY);
             }
 
             // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            mRawPathStroke.lineTo(endX, endY);
+            mRawPathFill.lineTo(endX, endY);
 
             lastX = endX;
             lastY = endY;
-            lastTime = endTime;
+            lastTime = mBucketEnd[i];
         }
 
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
+            lastX = mEndTime - origin;
 
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
+            mRawPathStroke.lineTo(lastX, lastY);
+            mRawPathFill.lineTo(lastX, lastY);
         }
 
-        if (LOGD) {
-            final RectF bounds = new RectF();
-            mPathFill.computeBounds(bounds, true);
-            Log.d(TAG, "onLayout() rendered with bounds=" + bounds.toString() + " and totalData="
-                    + totalData);
+        // drop to zero from current location; buckets before the visible
+        // range end up below the bottom of the graph once mapped
+        mRawPathFill.lineTo(lastX, 0);
+        mRawPathFill.lineTo(0, 0);
+    }
+
+    /**
+     * Return index of the first bucket drawn inside the visible range.
+     */
+    private int getFirstVisibleIndex() {
+        int index = mStats.getIndexBefore(mStart);
+        while (index < mBucketEnd.length && mBucketEnd[index] < mStart) {
+            index++;
         }
+        return index;
+    }
 
-        // drop to bottom of graph from current location
-        mPathFill.lineTo(lastX, height);
-        mPathFill.lineTo(0, height);
+    /**
+     * Return total bytes of the buckets drawn inside the visible range, which
+     * is where the series reaches at its right edge.
+     */
+    private long getVisibleTotal() {
+        if (mCumulative == null) {
+            return 0;
+        }
+        final int first = getFirstVisibleIndex();
+        final int last = mStats.getIndexAfter(mEnd);
+        if (last < first) {
+            return 0;
+        }
+        return mCumulative[last] - (first > 0 ? mCumulative[first - 1] : 0);
+    }
 
-        mMax = totalData;
+    /**
+     * Map the raw series outline onto the current axes, counting data from
+     * the first visible bucket.
+     */
+    private void generatePath() {
+        if (LOGD) Log.d(TAG, "generatePath()");
 
-        if (ESTIMATE_ENABLED) {
-            // build estimated data
-            mPathEstimate.moveTo(lastX, lastY);
+        if (!mRawPathValid) {
+            generateRawPath();
+        }
 
-            final long now = System.currentTimeMillis();
-            final long bucketDuration = mStats.getBucketDuration();
+        mPathStroke.reset();
+        mPathFill.reset();
+        mPathEstimate.reset();
+        mPathValid = true;
 
-            // long window is average over two weeks
-            entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
-            final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                    / entry.bucketDuration;
+        if (mCumulative == null) {
+            return;
+        }
 
-            long futureTime = 0;
-            while (lastX < width) {
-                futureTime += bucketDuration;
+        // both axes are linear, so two points of each define the transform
+        final int size = mCumulative.length;
+        final long origin = mBucketStart[0];
+        final long timeSpan = mBucketEnd[size - 1] - origin;
+        final float originX = mHoriz.convertToPoint(origin);
+        final float scaleX = (mHoriz.convertToPoint(origin + timeSpan) - originX) / timeSpan;
 
-                // short window is day average last week
-                final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
-                entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
-                final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
-                        / entry.bucketDuration;
+        final long dataSpan = Math.max(mCumulative[size - 1], 1);
+        final float zeroY = mVert.convertToPoint(0);
+        final float scaleY = (mVert.convertToPoint(dataSpan) - zeroY) / dataSpan;
 
-                totalData += (longWindow * 7 + shortWindow * 3) / 10;
+        final int first = getFirstVisibleIndex();
+        final long offset = first > 0 ? mCumulative[first - 1] : 0;
 
-                lastX = mHoriz.convertToPoint(lastTime + futureTime);
-                lastY = mVert.convertToPoint(totalData);
+        mTransform.setScale(scaleX, scaleY);
+        mTransform.postTranslate(originX, zeroY - scaleY * offset);
+        mRawPathStroke.transform(mTransform, mPathStroke);
+        mRawPathFill.transform(mTransform, mPathFill);
 
-                mPathEstimate.lineTo(lastX, lastY);
-            }
+        if (LOGD) {
+            final RectF bounds = new RectF();
+            mPathFill.computeBounds(bounds, true);
+            Log.d(TAG, "generatePath() rendered with bounds=" + bounds.toString()
+                    + " and offset=" + offset);
+        }
 
-            mMaxEstimate = totalData;
+        if (ESTIMATE_ENABLED) {
+            generateEstimate();
         }
 
         invalidate();
     }
 
+    /**
+     * Build estimated data from the end of the visible series to the right
+     * edge of the graph.
+     */
+    private void generateEstimate() {
+        final int width = getWidth();
+        final int last = Math.min(mStats.getIndexAfter(mEnd), mBucketEnd.length - 1);
+        final long lastTime = mBucketEnd[last];
+        long totalData = getVisibleTotal();
+
+        float lastX = mHoriz.convertToPoint(Math.max(lastTime, mEndTime));
+        float lastY = mVert.convertToPoint(totalData);
+        mPathEstimate.moveTo(lastX, lastY);
+
+        final long now = System.currentTimeMillis();
+        final long bucketDuration = mStats.getBucketDuration();
+
+        // long window is average over two weeks
+        NetworkStatsHistory.Entry entry = mStats.getValues(
+                lastTime - WEEK_IN_MILLIS * 2, lastTime, now, null);
+        final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
+                / entry.bucketDuration;
+
+        long futureTime = 0;
+        while (lastX < width) {
+            futureTime += bucketDuration;
+
+            // short window is day average last week
+            final long lastWeekTime = lastTime - WEEK_IN_MILLIS + (futureTime % WEEK_IN_MILLIS);
+            entry = mStats.getValues(lastWeekTime - DAY_IN_MILLIS, lastWeekTime, now, entry);
+            final long shortWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
+                    / entry.bucketDuration;
+
+            totalData += (longWindow * 7 + shortWindow * 3) / 10;
+
+            lastX = mHoriz.convertToPoint(lastTime + futureTime);
+            lastY = mVert.convertToPoint(totalData);
+
+            mPathEstimate.lineTo(lastX, lastY);
+        }
+
+        mMaxEstimate = totalData;
+    }
+
     public void setEndTime(long endTime) {
-        mEndTime = endTime;
+        if (mEndTime != endTime) {
+            mEndTime = endTime;
+            mRawPathValid = false;
+            invalidatePath();
+        }
     }
 
     public void setEstimateVisible(boolean estimateVisible) {
@@ -305,14 +423,11 @@ public class ChartNetworkSeriesView extends View {
     }
 
     public long getMaxVisible() {
-        final long maxVisible = mEstimateVisible ? mMaxEstimate : mMax;
-        if (maxVisible <= 0 && mStats != null) {
-            // haven't generated path yet; fall back to raw data
-            final NetworkStatsHistory.Entry entry = mStats.getValues(mStart, mEnd, null);
-            return entry.rxBytes + entry.txBytes;
-        } else {
-            return maxVisible;
+        if (mEstimateVisible && mMaxEstimate > 0) {
+            return mMaxEstimate;
         }
+        // computed from the buckets, so valid before the path is generated
+        return getVisibleTotal();
     }
 
     @Override
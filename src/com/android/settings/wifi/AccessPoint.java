@@ -29,12 +29,14 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.preference.Preference;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.List;
 import java.util.Map;
 
 
@@ -130,7 +132,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -141,6 +143,23 @@ class AccessPoint extends Preference {
         return SECURITY_NONE;
     }
 
+    /**
+     * Returns the key WifiSettings uses to match scan results and configurations to the access
+     * points it already shows.
+     */
+    static String getKey(String ssid, int security) {
+        return ssid + ',' + security;
+    }
+
+    static String getKey(WifiConfiguration config) {
+        return getKey(config.SSID == null ? "" : removeDoubleQuotes(config.SSID),
+                getSecurity(config));
+    }
+
+    static String getKey(ScanResult result) {
+        return getKey(result.SSID, getSecurity(result));
+    }
+
     public String getSecurityString(boolean concise) {
         Context context = getContext();
         switch(security) {
@@ -313,7 +332,19 @@ class AccessPoint extends Preference {
             return difference;
         }
         // Sort by ssid.
-        return ssid.compareToIgnoreCase(other.ssid);
+        difference = ssid.compareToIgnoreCase(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        // Distinct access points never compare equal, so that they can be removed one by one
+        difference = ssid.compareTo(other.ssid);
+        if (difference != 0) {
+            return difference;
+        }
+        if (security != other.security) {
+            return security < other.security ? -1 : 1;
+        }
+        return networkId < other.networkId ? -1 : (networkId == other.networkId ? 0 : 1);
     }
 
     @Override
@@ -362,6 +393,78 @@ class AccessPoint extends Preference {
         return false;
     }
 
+    /**
+     * Replaces the configuration, scan results and connection state of this access point, as
+     * WifiSettings does for each scan with the access points it keeps across scans. Only
+     * notifies when what is shown changes; the caller reorders the list if needed.
+     *
+     * @param config the configuration, or null if this network is not saved
+     * @param results the scan results for this network, or null if it is out of range
+     */
+    void update(WifiConfiguration config, List<ScanResult> results, WifiInfo info,
+            DetailedState state) {
+        final int oldLevel = getLevel();
+
+        if (config != null) {
+            loadConfig(config);
+        } else {
+            mConfig = null;
+            networkId = WifiConfiguration.INVALID_NETWORK_ID;
+        }
+
+        mRssi = Integer.MAX_VALUE;
+        if (results != null) {
+            for (int i = 0; i < results.size(); i++) {
+                final ScanResult result = results.get(i);
+                if (result.seen > mSeen) {
+                    mSeen = result.seen;
+                }
+                if (WifiSettings.mVerboseLogging > 0) {
+                    if (mScanResultCache == null) {
+                        mScanResultCache = new LruCache<String, ScanResult>(32);
+                    }
+                    mScanResultCache.put(result.BSSID, result);
+                }
+                if (mRssi == Integer.MAX_VALUE
+                        || WifiManager.compareSignalLevel(result.level, mRssi) > 0) {
+                    mRssi = result.level;
+                }
+                if (security == SECURITY_PSK) {
+                    pskType = getPskType(result);
+                }
+                if (config == null && i == 0) {
+                    bssid = result.BSSID;
+                    wpsAvailable = security != SECURITY_EAP && result.capabilities.contains("WPS");
+                }
+                mScanResult = result;
+            }
+        }
+
+        if (info != null && networkId != WifiConfiguration.INVALID_NETWORK_ID
+                && networkId == info.getNetworkId()) {
+            mRssi = info.getRssi();
+            mInfo = info;
+            mState = state;
+        } else {
+            mInfo = null;
+            mState = null;
+        }
+
+        // An empty summary hides the summary view until the access point is built again
+        showSummary = true;
+        refresh();
+        if (getLevel() != oldLevel) {
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Has the list holding this access point sorted again.
+     */
+    void reorder() {
+        notifyHierarchyChanged();
+    }
+
     void update(WifiInfo info, DetailedState state) {
         boolean reorder = false;
         if (info != null && networkId != WifiConfiguration.INVALID_NETWORK_ID
@@ -579,10 +682,6 @@ class AccessPoint extends Preference {
         final Context context = getContext();
         updateIcon(getLevel(), context);
 
-        // Force new summary
-        setSummary(null);
-
-        // Update to new summary
         StringBuilder summary = new StringBuilder();
 
         if (mState != null) { // This is the active connection
@@ -645,9 +744,16 @@ class AccessPoint extends Preference {
             }
         }
 
+        // Only set the summary when it changed, which rebinds the view
         if (summary.length() > 0) {
-            setSummary(summary.toString());
+            final String newSummary = summary.toString();
+            if (!TextUtils.equals(newSummary, getSummary())) {
+                setSummary(newSummary);
+            }
         } else {
+            if (getSummary() != null) {
+                setSummary(null);
+            }
             showSummary = false;
         }
     }
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the Wi-Fi state, configured networks and scan results on a worker thread, and hands
+ * them to the UI thread as immutable {@link Snapshot}s. Requests made while one is being
+ * processed are collapsed into a single one.
+ *
+ * Also counts scans, processing latency and how much each snapshot differs from the previous
+ * one, which {@link WifiSettings} uses to back off its scans.
+ */
+class WifiScanProcessor {
+    private static final int MSG_PROCESS = 1;
+    private static final int MSG_SNAPSHOT = 2;
+    private static final int MSG_RESET = 3;
+
+    /**
+     * What WifiSettings needs to update its list, as of one scan.
+     */
+    static final class Snapshot {
+        final int wifiState;
+        final int verboseLogging;
+        /** Number of configured networks, or -1 if they could not be read. */
+        final int savedNetworks;
+        /** The configurations to show, and their {@link AccessPoint#getKey} keys. */
+        final List<WifiConfiguration> configs;
+        final List<String> configKeys;
+        /** Scan results of the visible networks by {@link AccessPoint#getKey} key. */
+        final Map<String, List<ScanResult>> resultsByKey;
+        /** Networks added, removed or whose signal level changed since the last snapshot. */
+        final int churn;
+        /** Whether new scan results were among what this snapshot was requested for. */
+        final boolean fromScan;
+
+        Snapshot(int wifiState, int verboseLogging, int savedNetworks,
+                List<WifiConfiguration> configs, List<String> configKeys,
+                Map<String, List<ScanResult>> resultsByKey, int churn, boolean fromScan) {
+            this.wifiState = wifiState;
+            this.verboseLogging = verboseLogging;
+            this.savedNetworks = savedNetworks;
+            this.configs = configs;
+            this.configKeys = configKeys;
+            this.resultsByKey = resultsByKey;
+            this.churn = churn;
+            this.fromScan = fromScan;
+        }
+    }
+
+    interface Callback {
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    private final WifiManager mWifiManager;
+    private final HandlerThread mThread;
+    private final Handler mWorker;
+    private final Handler mMain;
+
+    // Only touched on the main thread
+    private Callback mCallback;
+
+    // Only touched on the worker thread
+    private HashMap<String, Integer> mLastLevels = new HashMap<String, Integer>();
+
+    // Whether a pending request was made for new scan results, guarded by this
+    private boolean mPendingFromScan;
+
+    // Counters, guarded by this
+    private int mScans;
+    private int mSnapshots;
+    private int mStableSnapshots;
+    private long mChurnTotal;
+    private long mProcessNanosTotal;
+    private long mProcessNanosMax;
+
+    WifiScanProcessor(WifiManager wifiManager) {
+        mWifiManager = wifiManager;
+        mThread = new HandlerThread("WifiScanProcessor", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorker = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_PROCESS) {
+                    final boolean fromScan;
+                    synchronized (WifiScanProcessor.this) {
+                        fromScan = mPendingFromScan;
+                        mPendingFromScan = false;
+                    }
+                    final Snapshot snapshot = process(fromScan);
+                    mMain.obtainMessage(MSG_SNAPSHOT, snapshot).sendToTarget();
+                } else if (msg.what == MSG_RESET) {
+                    mLastLevels.clear();
+                }
+            }
+        };
+        mMain = new Handler(Looper.getMainLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SNAPSHOT && mCallback != null) {
+                    mCallback.onSnapshot((Snapshot) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts delivering snapshots to the given callback on the main thread.
+     */
+    void resume(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Stops delivering snapshots; requests not processed yet are dropped, and
+     * the first snapshot after resuming is not compared with older ones.
+     */
+    void pause() {
+        mCallback = null;
+        mWorker.removeMessages(MSG_PROCESS);
+        mWorker.sendEmptyMessage(MSG_RESET);
+        mMain.removeMessages(MSG_SNAPSHOT);
+        synchronized (this) {
+            mPendingFromScan = false;
+        }
+    }
+
+    void quit() {
+        pause();
+        mThread.quit();
+    }
+
+    /**
+     * Asks for a new snapshot, for new scan results or not. Does nothing more
+     * than flag it as such if one is already waiting to be processed.
+     */
+    void requestSnapshot(boolean fromScan) {
+        if (fromScan) {
+            synchronized (this) {
+                mPendingFromScan = true;
+            }
+        }
+        if (!mWorker.hasMessages(MSG_PROCESS)) {
+            mWorker.sendEmptyMessage(MSG_PROCESS);
+        }
+    }
+
+    synchronized void countScan() {
+        mScans++;
+    }
+
+    private Snapshot process(boolean fromScan) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+
+        final int wifiState = mWifiManager.getWifiState();
+        final int verboseLogging = mWifiManager.getVerboseLoggingLevel();
+        if (wifiState != WifiManager.WIFI_STATE_ENABLED) {
+            mLastLevels.clear();
+            return new Snapshot(wifiState, verboseLogging, -1,
+                    Collections.<WifiConfiguration>emptyList(), Collections.<String>emptyList(),
+                    Collections.<String, List<ScanResult>>emptyMap(), 0, fromScan);
+        }
+
+        final List<WifiConfiguration> allConfigs = mWifiManager.getConfiguredNetworks();
+        final ArrayList<WifiConfiguration> configs = new ArrayList<WifiConfiguration>();
+        final ArrayList<String> configKeys = new ArrayList<String>();
+        if (allConfigs != null) {
+            for (WifiConfiguration config : allConfigs) {
+                if (config.selfAdded && config.numAssociation == 0) {
+                    continue;
+                }
+                configs.add(config);
+                configKeys.add(AccessPoint.getKey(config));
+            }
+        }
+
+        final HashMap<String, List<ScanResult>> resultsByKey =
+                new HashMap<String, List<ScanResult>>();
+        final HashMap<String, Integer> levels = new HashMap<String, Integer>();
+        final List<ScanResult> results = mWifiManager.getScanResults();
+        if (results != null) {
+            for (ScanResult result : results) {
+                // Ignore hidden and ad-hoc networks.
+                if (result.SSID == null || result.SSID.length() == 0 ||
+                        result.capabilities.contains("[IBSS]")) {
+                    continue;
+                }
+                final String key = AccessPoint.getKey(result);
+                List<ScanResult> keyResults = resultsByKey.get(key);
+                if (keyResults == null) {
+                    keyResults = new ArrayList<ScanResult>(2);
+                    resultsByKey.put(key, keyResults);
+                }
+                keyResults.add(result);
+
+                final int level = WifiManager.calculateSignalLevel(result.level, 4);
+                final Integer previous = levels.get(key);
+                if (previous == null || previous < level) {
+                    levels.put(key, level);
+                }
+            }
+        }
+        for (Map.Entry<String, List<ScanResult>> entry : resultsByKey.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        // Count what changed since the last snapshot
+        int churn = 0;
+        for (Map.Entry<String, Integer> entry : levels.entrySet()) {
+            if (!entry.getValue().equals(mLastLevels.get(entry.getKey()))) {
+                churn++;
+            }
+        }
+        for (String key : mLastLevels.keySet()) {
+            if (!levels.containsKey(key)) {
+                churn++;
+            }
+        }
+        mLastLevels = levels;
+
+        final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        synchronized (this) {
+            mSnapshots++;
+            if (churn == 0) {
+                mStableSnapshots++;
+            }
+            mChurnTotal += churn;
+            mProcessNanosTotal += nanos;
+            if (nanos > mProcessNanosMax) {
+                mProcessNanosMax = nanos;
+            }
+        }
+
+        return new Snapshot(wifiState, verboseLogging,
+                allConfigs != null ? allConfigs.size() : -1,
+                Collections.unmodifiableList(configs), Collections.unmodifiableList(configKeys),
+                Collections.unmodifiableMap(resultsByKey), churn, fromScan);
+    }
+
+    synchronized void dump(String prefix, PrintWriter pw) {
+        pw.print(prefix); pw.print("scans="); pw.print(mScans);
+        pw.print(" snapshots="); pw.print(mSnapshots);
+        pw.print(" stable="); pw.println(mStableSnapshots);
+        pw.print(prefix); pw.print("churn avg=");
+        pw.print(mSnapshots > 0 ? (float) mChurnTotal / mSnapshots : 0);
+        pw.print(" processing avg=");
+        pw.print(mSnapshots > 0 ? mProcessNanosTotal / mSnapshots / 1000 : 0);
+        pw.print("us max="); pw.print(mProcessNanosMax / 1000); pw.println("us");
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "scans=" + mScans + " snapshots=" + mSnapshots + " stable=" + mStableSnapshots
+                + " churn=" + mChurnTotal + " processing max=" + (mProcessNanosMax / 1000) + "us";
+    }
+}
@@ -46,6 +46,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -70,11 +71,16 @@ import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -112,6 +118,8 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     // Combo scans can take 5-6s to complete - set to 10s.
     private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
+    // Scans back off up to this while their results do not change
+    private static final int WIFI_RESCAN_INTERVAL_MAX_MS = 60 * 1000;
 
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
@@ -122,6 +130,7 @@ public class WifiSettings extends RestrictedSettingsFragment
     private final IntentFilter mFilter;
     private final BroadcastReceiver mReceiver;
     private final Scanner mScanner;
+    private WifiScanProcessor mScanProcessor;
 
     /* package */ WifiManager mWifiManager;
     private WifiManager.ActionListener mConnectListener;
@@ -155,6 +164,19 @@ public class WifiSettings extends RestrictedSettingsFragment
     private Bundle mAccessPointSavedState;
     private View mWifiAssistantCard;
     private NetworkScorerAppData mWifiAssistantApp;
+    private boolean mWifiAssistantCardShown;
+
+    // Access points kept across scans, keyed by AccessPoint.getKey(), and the ones of them
+    // that are on the screen
+    private HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+    private final Set<AccessPoint> mShownAccessPoints =
+            Collections.newSetFromMap(new IdentityHashMap<AccessPoint, Boolean>());
+
+    // Time spent applying scans to the list, to check it fits in a frame
+    private static final long FRAME_TIME_NANOS = 16 * 1000 * 1000;
+    private int mListUpdates;
+    private int mSlowListUpdates;
+    private long mListUpdateNanosMax;
 
     /** verbose logging flag. this flag is set thru developer debugging options
      * and used so as to assist with in-the-field WiFi connectivity debugging  */
@@ -181,8 +203,14 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    /**
+     * Scans every {@link #WIFI_RESCAN_INTERVAL_MS}, doubling the interval up to
+     * {@link #WIFI_RESCAN_INTERVAL_MAX_MS} for each scan whose results did not change, and
+     * going back to the shortest interval as soon as they do or the connection state changes.
+     */
     private static class Scanner extends Handler {
         private int mRetry = 0;
+        private int mInterval = WIFI_RESCAN_INTERVAL_MS;
         private WifiSettings mWifiSettings = null;
 
         Scanner(WifiSettings wifiSettings) {
@@ -202,11 +230,34 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         void pause() {
             mRetry = 0;
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
             removeMessages(0);
         }
 
+        void onResults(boolean stable) {
+            if (stable) {
+                mInterval = Math.min(mInterval * 2, WIFI_RESCAN_INTERVAL_MAX_MS);
+            } else {
+                resetInterval();
+            }
+        }
+
+        void resetInterval() {
+            if (mInterval == WIFI_RESCAN_INTERVAL_MS) {
+                return;
+            }
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
+            if (hasMessages(0)) {
+                removeMessages(0);
+                sendEmptyMessageDelayed(0, mInterval);
+            }
+        }
+
         @Override
         public void handleMessage(Message message) {
+            if (mWifiSettings.mScanProcessor != null) {
+                mWifiSettings.mScanProcessor.countScan();
+            }
             if (mWifiSettings.mWifiManager.startScan()) {
                 mRetry = 0;
             } else if (++mRetry >= 3) {
@@ -217,7 +268,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                 }
                 return;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            sendEmptyMessageDelayed(0, mInterval);
         }
     }
 
@@ -248,6 +299,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         super.onActivityCreated(savedInstanceState);
 
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        mScanProcessor = new WifiScanProcessor(mWifiManager);
 
         mConnectListener = new WifiManager.ActionListener() {
                                    @Override
@@ -321,6 +373,7 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         addPreferencesFromResource(R.xml.wifi_settings);
 
+        mWifiAssistantCardShown = false;
         prepareWifiAssistantCard();
 
         mEmptyView = initEmptyView();
@@ -334,6 +387,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             if (resultCode == Activity.RESULT_OK) {
                 disableWifiAssistantCardUntilPlatformUpgrade();
                 getListView().removeHeaderView(mWifiAssistantCard);
+                mWifiAssistantCardShown = false;
                 mWifiAssistantApp = null;
             }
         } else {
@@ -350,6 +404,14 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mScanProcessor != null) {
+            mScanProcessor.quit();
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -375,6 +437,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         activity.registerReceiver(mReceiver, mFilter);
+        mScanProcessor.resume(mSnapshotCallback);
         updateAccessPoints();
     }
 
@@ -387,6 +450,22 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         getActivity().unregisterReceiver(mReceiver);
         mScanner.pause();
+        mScanProcessor.pause();
+        if (mVerboseLogging > 0) {
+            Log.d(TAG, "Scans: " + mScanProcessor);
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix); writer.println("Wi-Fi scans:");
+        if (mScanProcessor != null) {
+            mScanProcessor.dump(prefix + "  ", writer);
+        }
+        writer.print(prefix); writer.print("  list updates="); writer.print(mListUpdates);
+        writer.print(" over a frame="); writer.print(mSlowListUpdates);
+        writer.print(" max="); writer.print(mListUpdateNanosMax / 1000); writer.println("us");
     }
 
     @Override
@@ -632,9 +711,18 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     /**
      * Shows the latest access points available with supplemental information like
-     * the strength of network and the security for it.
+     * the strength of network and the security for it. The configurations and scan results
+     * are read in the background, see {@link #onSnapshot}.
      */
     private void updateAccessPoints() {
+        updateAccessPoints(false);
+    }
+
+    /**
+     * @param fromScan whether new scan results are available, which the scan
+     *     interval backs off on if they did not change
+     */
+    private void updateAccessPoints(boolean fromScan) {
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
 
@@ -642,36 +730,47 @@ public class WifiSettings extends RestrictedSettingsFragment
             addMessagePreference(R.string.wifi_empty_list_user_restricted);
             return;
         }
-        final int wifiState = mWifiManager.getWifiState();
+        mScanProcessor.requestSnapshot(fromScan);
+    }
+
+    private final WifiScanProcessor.Callback mSnapshotCallback = new WifiScanProcessor.Callback() {
+        @Override
+        public void onSnapshot(WifiScanProcessor.Snapshot snapshot) {
+            WifiSettings.this.onSnapshot(snapshot);
+        }
+    };
+
+    private void onSnapshot(WifiScanProcessor.Snapshot snapshot) {
+        // Safeguard from some delayed event handling
+        if (getActivity() == null || isUiRestricted()) return;
 
         //when we update the screen, check if verbose logging has been turned on or off
-        mVerboseLogging = mWifiManager.getVerboseLoggingLevel();
+        mVerboseLogging = snapshot.verboseLogging;
 
-        switch (wifiState) {
+        switch (snapshot.wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(getActivity(), mWifiManager, mLastInfo, mLastState);
-                getPreferenceScreen().removeAll();
-                if (accessPoints.size() == 0) {
-                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
+                if (snapshot.fromScan) {
+                    mScanner.onResults(snapshot.churn == 0);
                 }
-
-                getListView().removeHeaderView(mWifiAssistantCard);
-                if (mWifiAssistantApp != null) {
-                    getListView().addHeaderView(mWifiAssistantCard);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final int shown = applyScanToAccessPoints(snapshot);
+                if (shown == 0) {
+                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
                 }
 
-                for (AccessPoint accessPoint : accessPoints) {
-                    // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        getPreferenceScreen().addPreference(accessPoint);
+                if (mWifiAssistantCardShown != (mWifiAssistantApp != null)) {
+                    mWifiAssistantCardShown = mWifiAssistantApp != null;
+                    if (mWifiAssistantCardShown) {
+                        getListView().addHeaderView(mWifiAssistantCard);
+                    } else {
+                        getListView().removeHeaderView(mWifiAssistantCard);
                     }
                 }
+                countListUpdate(SystemClock.elapsedRealtimeNanos() - start, shown);
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                removeAllAccessPoints();
                 break;
 
             case WifiManager.WIFI_STATE_DISABLING:
@@ -684,6 +783,120 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    /**
+     * Applies the configurations and scan results of the snapshot to the access points kept
+     * across scans: new ones are inserted, the ones gone or out of range are removed, and the
+     * others are updated in place, which only rebinds them if what they show changed. The list
+     * is only re-sorted if the order changed. Returns the number of access points shown.
+     */
+    private int applyScanToAccessPoints(WifiScanProcessor.Snapshot snapshot) {
+        final Context context = getActivity();
+        final PreferenceScreen screen = getPreferenceScreen();
+        final Map<String, List<ScanResult>> resultsByKey = snapshot.resultsByKey;
+        updateSavedNetworksExist(context, snapshot.savedNetworks);
+
+        final HashMap<String, AccessPoint> accessPoints =
+                new HashMap<String, AccessPoint>(mAccessPoints.size());
+        final HashMap<String, List<ScanResult>> unmatched =
+                new HashMap<String, List<ScanResult>>(resultsByKey);
+        for (int i = 0; i < snapshot.configs.size(); i++) {
+            final WifiConfiguration config = snapshot.configs.get(i);
+            final String scanKey = snapshot.configKeys.get(i);
+            String key = scanKey;
+            if (accessPoints.containsKey(key)) {
+                // Several configurations for the same network each get an access point
+                key = scanKey + '#' + config.networkId;
+            }
+            AccessPoint accessPoint = mAccessPoints.remove(key);
+            if (accessPoint == null) {
+                accessPoint = new AccessPoint(context, config);
+            }
+            accessPoint.update(config, resultsByKey.get(scanKey), mLastInfo, mLastState);
+            unmatched.remove(scanKey);
+            accessPoints.put(key, accessPoint);
+        }
+        for (Map.Entry<String, List<ScanResult>> entry : unmatched.entrySet()) {
+            final String key = entry.getKey();
+            AccessPoint accessPoint = mAccessPoints.remove(key);
+            if (accessPoint == null) {
+                accessPoint = new AccessPoint(context, entry.getValue().get(0));
+            }
+            accessPoint.update(null, entry.getValue(), mLastInfo, mLastState);
+            accessPoints.put(key, accessPoint);
+        }
+
+        // What is left is gone
+        for (AccessPoint accessPoint : mAccessPoints.values()) {
+            if (mShownAccessPoints.remove(accessPoint)) {
+                screen.removePreference(accessPoint);
+            }
+        }
+        mAccessPoints = accessPoints;
+
+        for (AccessPoint accessPoint : accessPoints.values()) {
+            // Ignore access points that are out of range.
+            final boolean inRange = accessPoint.getLevel() != -1;
+            if (inRange && mShownAccessPoints.add(accessPoint)) {
+                screen.addPreference(accessPoint);
+            } else if (!inRange && mShownAccessPoints.remove(accessPoint)) {
+                screen.removePreference(accessPoint);
+            }
+        }
+
+        // The screen keeps its preferences in the order of the last sort
+        AccessPoint previous = null;
+        for (int i = 0; i < screen.getPreferenceCount(); i++) {
+            final Preference preference = screen.getPreference(i);
+            if (!(preference instanceof AccessPoint)) {
+                continue;
+            }
+            final AccessPoint accessPoint = (AccessPoint) preference;
+            if (previous != null && previous.compareTo(accessPoint) > 0) {
+                accessPoint.reorder();
+                break;
+            }
+            previous = accessPoint;
+        }
+
+        return mShownAccessPoints.size();
+    }
+
+    private void removeAllAccessPoints() {
+        getPreferenceScreen().removeAll();
+        mAccessPoints.clear();
+        mShownAccessPoints.clear();
+    }
+
+    private void countListUpdate(long nanos, int shown) {
+        mListUpdates++;
+        if (nanos > FRAME_TIME_NANOS) {
+            mSlowListUpdates++;
+        }
+        if (nanos > mListUpdateNanosMax) {
+            mListUpdateNanosMax = nanos;
+        }
+        if (mVerboseLogging > 0) {
+            Log.d(TAG, "Updated " + shown + " access points in " + (nanos / 1000) + " us, "
+                    + mSlowListUpdates + " of " + mListUpdates + " updates over a frame, max "
+                    + (mListUpdateNanosMax / 1000) + " us");
+        }
+    }
+
+    /**
+     * @param savedNetworks the number of configured networks, or -1 if unknown
+     */
+    private static void updateSavedNetworksExist(Context context, int savedNetworks) {
+        if (savedNetworks >= 0) {
+            // Update "Saved Networks" menu option.
+            if (savedNetworksExist != (savedNetworks > 0)) {
+                savedNetworksExist = !savedNetworksExist;
+                if (context instanceof Activity) {
+                    ((Activity) context).invalidateOptionsMenu();
+                }
+            }
+        }
+    }
+
     /**
      * Returns the Network Scorer for the Wifi Assistant App.
      */
@@ -766,6 +979,7 @@ public class WifiSettings extends RestrictedSettingsFragment
                     public void onClick(View v) {
                         disableWifiAssistantCardUntilPlatformUpgrade();
                         getListView().removeHeaderView(mWifiAssistantCard);
+                        mWifiAssistantCardShown = false;
                         mWifiAssistantApp = null;
                     }
                 });
@@ -803,12 +1017,12 @@ public class WifiSettings extends RestrictedSettingsFragment
                 mEmptyView.append(charSeq);
             }
         }
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
     /** Returns sorted list of access points */
@@ -820,14 +1034,8 @@ public class WifiSettings extends RestrictedSettingsFragment
         Multimap<String, AccessPoint> apMap = new Multimap<String, AccessPoint>();
 
         final List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
+        updateSavedNetworksExist(context, configs != null ? configs.size() : -1);
         if (configs != null) {
-            // Update "Saved Networks" menu option.
-            if (savedNetworksExist != (configs.size() > 0)) {
-                savedNetworksExist = !savedNetworksExist;
-                if (context instanceof Activity) {
-                    ((Activity) context).invalidateOptionsMenu();
-                }
-            }
             for (WifiConfiguration config : configs) {
                 if (config.selfAdded && config.numAssociation == 0) {
                     continue;
@@ -873,8 +1081,9 @@ public class WifiSettings extends RestrictedSettingsFragment
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            updateAccessPoints(true);
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
                 updateAccessPoints();
         } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
@@ -904,6 +1113,10 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         mLastInfo = mWifiManager.getConnectionInfo();
         if (state != null) {
+            if (state != mLastState) {
+                // Look around more often while the connection is changing
+                mScanner.resetInterval();
+            }
             mLastState = state;
         }
 
@@ -1026,7 +1239,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mScanner.resume();
         }
 
-        getPreferenceScreen().removeAll();
+        removeAllAccessPoints();
     }
 
     /**
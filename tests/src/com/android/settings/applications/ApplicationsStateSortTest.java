@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+public class ApplicationsStateSortTest extends AndroidTestCase {
+
+    private static final String TAG = "ApplicationsStateSortTest";
+
+    private static final int ENTRY_COUNT = 1000;
+    private static final int BENCHMARK_ROUNDS = 20;
+    private static final int CHANGED_SIZES = 10;
+
+    private static final String[] WORDS = new String[] {
+            "Maps", "Camera", "Clock", "\u00c9diteur", "calendar", "Photos", "Music", "Zo\u00eb",
+            "Browser", "Mail", "Notes", "Weather", "\u00c5ngstr\u00f6m", "Files", "Radio", "Keep",
+    };
+
+    // The comparator the collation keys replace
+    private static final Comparator<AppEntry> REFERENCE_SIZE_COMPARATOR
+            = new Comparator<AppEntry>() {
+        private final Collator sCollator = Collator.getInstance();
+        @Override
+        public int compare(AppEntry object1, AppEntry object2) {
+            if (object1.size < object2.size) return 1;
+            if (object1.size > object2.size) return -1;
+            return sCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    public void testSameOrderAsReference() {
+        final ArrayList<AppEntry> entries = createEntries(new Random(0));
+
+        final ArrayList<AppEntry> expected = new ArrayList<AppEntry>(entries);
+        Collections.sort(expected, REFERENCE_SIZE_COMPARATOR);
+
+        final ArrayList<AppEntry> actual = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(actual, ApplicationsState.SIZE_COMPARATOR, null);
+        assertEquals(expected, actual);
+    }
+
+    public void testIncrementalResortAfterSizeChanges() {
+        final Random random = new Random(1);
+        final ArrayList<AppEntry> entries = createEntries(random);
+        final ArrayList<AppEntry> previous = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(previous, ApplicationsState.SIZE_COMPARATOR, null);
+
+        changeSizes(entries, random);
+
+        final ArrayList<AppEntry> expected = new ArrayList<AppEntry>(entries);
+        Collections.sort(expected, REFERENCE_SIZE_COMPARATOR);
+
+        final ArrayList<AppEntry> actual = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(actual, ApplicationsState.SIZE_COMPARATOR, previous);
+        assertEquals(expected, actual);
+    }
+
+    public void testLabelChangeInvalidatesKey() {
+        final ArrayList<AppEntry> entries = createEntries(new Random(2));
+        final AppEntry entry = entries.get(0);
+        entry.label = "aaa";
+        final int before = ApplicationsState.getCollationKey(entry)
+                .compareTo(ApplicationsState.getCollationKey(entries.get(1)));
+        entry.label = "zzz";
+        final int after = ApplicationsState.getCollationKey(entry)
+                .compareTo(ApplicationsState.getCollationKey(entries.get(1)));
+        assertTrue(before < 0);
+        assertTrue(after > 0);
+    }
+
+    /**
+     * Compare the time to sort 1,000 entries with the reference comparator, with the collation
+     * keys, and with the collation keys starting from the previous order after a few sizes
+     * changed.
+     */
+    public void testSortBenchmark() {
+        final Random random = new Random(3);
+        final ArrayList<AppEntry> entries = createEntries(random);
+
+        // Warm up, this also computes the collation keys
+        final ArrayList<AppEntry> previous = new ArrayList<AppEntry>(entries);
+        ApplicationsState.sortEntries(previous, ApplicationsState.SIZE_COMPARATOR, null);
+        Collections.sort(new ArrayList<AppEntry>(entries), REFERENCE_SIZE_COMPARATOR);
+
+        changeSizes(entries, random);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            Collections.sort(new ArrayList<AppEntry>(entries), REFERENCE_SIZE_COMPARATOR);
+        }
+        final long referenceNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            ApplicationsState.sortEntries(new ArrayList<AppEntry>(entries),
+                    ApplicationsState.SIZE_COMPARATOR, null);
+        }
+        final long keysNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            ApplicationsState.sortEntries(new ArrayList<AppEntry>(entries),
+                    ApplicationsState.SIZE_COMPARATOR, previous);
+        }
+        final long incrementalNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Sorted " + ENTRY_COUNT + " entries: reference "
+                + (referenceNanos / BENCHMARK_ROUNDS / 1000) + " us, collation keys "
+                + (keysNanos / BENCHMARK_ROUNDS / 1000) + " us, incremental "
+                + (incrementalNanos / BENCHMARK_ROUNDS / 1000) + " us");
+    }
+
+    private ArrayList<AppEntry> createEntries(Random random) {
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>(ENTRY_COUNT);
+        for (int n = 0; n < ENTRY_COUNT; n++) {
+            final ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + n;
+            // The apk does not exist, so no label is loaded from the package manager
+            info.sourceDir = "/nonexistent/app" + n + ".apk";
+            final AppEntry entry = new AppEntry(getContext(), info, n);
+            entry.label = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + n;
+            entry.size = random.nextInt(64) * 1024L * 1024L;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void changeSizes(ArrayList<AppEntry> entries, Random random) {
+        for (int n = 0; n < CHANGED_SIZES; n++) {
+            entries.get(random.nextInt(entries.size())).size = random.nextInt(64) * 1024L * 1024L;
+        }
+    }
+}
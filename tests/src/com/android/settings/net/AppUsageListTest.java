@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.UserHandle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AppUsageListTest extends AndroidTestCase {
+
+    private static final String TAG = "AppUsageListTest";
+
+    private static final int APPS_PER_USER = 250;
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private static final int CURRENT_USER = 0;
+    private static final int PROFILE_USER = 10;
+    private static final int[] USERS = new int[] { CURRENT_USER, PROFILE_USER, 11, 12, 13 };
+    private static final String[] IFACES = new String[] { "rmnet0", "wlan0" };
+
+    private static final List<UserHandle> PROFILES = new ArrayList<UserHandle>();
+    static {
+        PROFILES.add(new UserHandle(CURRENT_USER));
+        PROFILES.add(new UserHandle(PROFILE_USER));
+    }
+
+    public void testSameItemsAsReference() {
+        final Random random = new Random(0);
+        final NetworkStats stats = createStats(random);
+        final int[] restrictedUids = createRestrictedUids(random);
+
+        final List<AppItem> expected = referenceBuild(stats, restrictedUids);
+        final AppUsageList actual = AppUsageList.build(stats, CURRENT_USER,
+                AppUsageList.buildProfiles(PROFILES), restrictedUids);
+
+        assertEquals(expected.size(), actual.items.size());
+        long largest = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            final AppItem expectedItem = expected.get(i);
+            final AppItem actualItem = actual.items.get(i);
+            assertEquals(expectedItem.key, actualItem.key);
+            assertEquals(expectedItem.category, actualItem.category);
+            assertEquals(expectedItem.total, actualItem.total);
+            assertEquals(expectedItem.restricted, actualItem.restricted);
+            assertEquals(expectedItem.uids.size(), actualItem.uids.size());
+            for (int j = 0; j < expectedItem.uids.size(); j++) {
+                assertEquals(expectedItem.uids.keyAt(j), actualItem.uids.keyAt(j));
+            }
+            largest = Math.max(largest, expectedItem.total);
+        }
+        assertEquals(largest, actual.largest);
+    }
+
+    public void testEmpty() {
+        final AppUsageList usage = AppUsageList.build(null, CURRENT_USER,
+                AppUsageList.buildProfiles(PROFILES), new int[0]);
+        assertTrue(usage.items.isEmpty());
+        assertEquals(0, usage.largest);
+    }
+
+    public void testItemsAreUnmodifiable() {
+        final AppUsageList usage = AppUsageList.build(createStats(new Random(1)), CURRENT_USER,
+                AppUsageList.buildProfiles(PROFILES), new int[0]);
+        try {
+            usage.items.clear();
+            fail("items should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    /**
+     * Compare the time to collapse the rows of a few users' apps with the reference, which
+     * allocates a UserHandle for each row and sorts on the UI thread.
+     */
+    public void testBuildBenchmark() {
+        final Random random = new Random(2);
+        final NetworkStats stats = createStats(random);
+        final int[] restrictedUids = createRestrictedUids(random);
+
+        // Warm up
+        referenceBuild(stats, restrictedUids);
+        AppUsageList.build(stats, CURRENT_USER, AppUsageList.buildProfiles(PROFILES),
+                restrictedUids);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            referenceBuild(stats, restrictedUids);
+        }
+        final long referenceNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            AppUsageList.build(stats, CURRENT_USER, AppUsageList.buildProfiles(PROFILES),
+                    restrictedUids);
+        }
+        final long buildNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Collapsed " + stats.size() + " rows: reference "
+                + (referenceNanos / BENCHMARK_ROUNDS / 1000) + " us, primitive "
+                + (buildNanos / BENCHMARK_ROUNDS / 1000) + " us");
+    }
+
+    private static NetworkStats createStats(Random random) {
+        final ArrayList<Integer> uids = new ArrayList<Integer>();
+        for (int userId : USERS) {
+            for (int n = 0; n < APPS_PER_USER; n++) {
+                uids.add(UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + n));
+            }
+        }
+        uids.add(Process.ROOT_UID);
+        uids.add(Process.SYSTEM_UID);
+        uids.add(Process.PHONE_UID);
+        uids.add(UID_REMOVED);
+        uids.add(UID_TETHERING);
+        Collections.shuffle(uids, random);
+
+        final NetworkStats stats = new NetworkStats(0, uids.size() * 4);
+        for (String iface : IFACES) {
+            for (int uid : uids) {
+                stats.addValues(iface, uid, SET_DEFAULT, TAG_NONE,
+                        random.nextInt(1 << 20), 0, random.nextInt(1 << 20), 0, 0);
+                stats.addValues(iface, uid, SET_FOREGROUND, TAG_NONE,
+                        random.nextInt(1 << 20), 0, random.nextInt(1 << 20), 0, 0);
+            }
+        }
+        return stats;
+    }
+
+    private static int[] createRestrictedUids(Random random) {
+        final int[] uids = new int[20];
+        for (int n = 0; n < uids.length; n++) {
+            // Some of them have no usage, and some are of users that are not profiles
+            uids[n] = UserHandle.getUid(USERS[random.nextInt(USERS.length)],
+                    Process.FIRST_APPLICATION_UID + random.nextInt(APPS_PER_USER * 2));
+        }
+        return uids;
+    }
+
+    // The collapsing AppUsageList.build replaces
+    private static List<AppItem> referenceBuild(NetworkStats stats, int[] restrictedUids) {
+        final ArrayList<AppItem> items = new ArrayList<AppItem>();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+            final int uid = entry.uid;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (PROFILES.contains(new UserHandle(userId))) {
+                    if (userId != CURRENT_USER) {
+                        referenceAccumulate(UidDetailProvider.buildKeyForUser(userId), items,
+                                knownItems, entry, AppItem.CATEGORY_USER);
+                    }
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            referenceAccumulate(collapseKey, items, knownItems, entry, category);
+        }
+
+        for (int uid : restrictedUids) {
+            if (!PROFILES.contains(new UserHandle(UserHandle.getUserId(uid)))) {
+                continue;
+            }
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        Collections.sort(items);
+        return items;
+    }
+
+    private static void referenceAccumulate(int collapseKey, ArrayList<AppItem> items,
+            SparseArray<AppItem> knownItems, NetworkStats.Entry entry, int category) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = category;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(entry.uid);
+        item.total += entry.rxBytes + entry.txBytes;
+    }
+}
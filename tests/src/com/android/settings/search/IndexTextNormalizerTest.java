@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.res.Resources;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.settings.R;
+
+import java.lang.reflect.Field;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public class IndexTextNormalizerTest extends AndroidTestCase {
+
+    private static final String TAG = "IndexTextNormalizerTest";
+
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private static final String[] SAMPLES = new String[] {
+            null,
+            "",
+            "Wi-Fi",
+            "Wi\u2011Fi",
+            "Bluetooth",
+            "Café crème",
+            "À PROPOS DU TÉLÉPHONE",
+            "Sicherheit & Datenschutz",
+            "ΟΔΟΣ",
+            "İstanbul IRMAK",
+            "日本語入力",
+            "---",
+    };
+
+    // The regex based implementation that IndexTextNormalizer replaces
+    private static final Pattern REMOVE_DIACRITICALS_PATTERN
+            = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    private static String referenceNormalizeHyphen(String input) {
+        return (input != null) ? input.replaceAll("\u2011", "-") : "";
+    }
+
+    private static String referenceNormalizeString(String input) {
+        final String nohyphen = (input != null) ? input.replaceAll("-", "") : "";
+        final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
+
+        return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
+    }
+
+    public void testSamplesMatchReference() {
+        assertSameAsReference(SAMPLES);
+    }
+
+    public void testSamplesMatchReferenceInTurkish() {
+        final Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertSameAsReference(SAMPLES);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testCorpusMatchesReference() throws Exception {
+        assertSameAsReference(loadCorpus());
+    }
+
+    /**
+     * Compare the throughput of the normalizer with the reference implementation over all the
+     * strings of Settings.
+     */
+    public void testCorpusBenchmark() throws Exception {
+        final String[] corpus = loadCorpus();
+        final IndexTextNormalizer normalizer = new IndexTextNormalizer();
+
+        // Warm up both implementations
+        runReference(corpus);
+        runNormalizer(normalizer, corpus);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            runReference(corpus);
+        }
+        final long referenceNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int n = 0; n < BENCHMARK_ROUNDS; n++) {
+            runNormalizer(normalizer, corpus);
+        }
+        final long normalizerNanos = System.nanoTime() - start;
+
+        final long strings = (long) corpus.length * BENCHMARK_ROUNDS;
+        Log.i(TAG, "Normalized " + strings + " strings: reference " +
+                (referenceNanos / strings) + " ns/string, normalizer " +
+                (normalizerNanos / strings) + " ns/string, speedup " +
+                String.format("%.1fx", (double) referenceNanos / normalizerNanos));
+    }
+
+    private static void runReference(String[] corpus) {
+        for (String text : corpus) {
+            referenceNormalizeString(referenceNormalizeHyphen(text));
+        }
+    }
+
+    private static void runNormalizer(IndexTextNormalizer normalizer, String[] corpus) {
+        for (String text : corpus) {
+            normalizer.normalizeString(normalizer.normalizeHyphen(text));
+        }
+    }
+
+    private static void assertSameAsReference(String[] inputs) {
+        final IndexTextNormalizer normalizer = new IndexTextNormalizer();
+        for (String input : inputs) {
+            final String hyphen = normalizer.normalizeHyphen(input);
+            assertEquals(referenceNormalizeHyphen(input), hyphen);
+            assertEquals(referenceNormalizeString(hyphen), normalizer.normalizeString(hyphen));
+        }
+    }
+
+    private String[] loadCorpus() throws IllegalAccessException {
+        final Resources res = getContext().getResources();
+        final List<String> result = new ArrayList<String>();
+        for (Field field : R.string.class.getFields()) {
+            try {
+                result.add(res.getString(field.getInt(null)));
+            } catch (Resources.NotFoundException e) {
+                // Not available for this configuration
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+}